@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.model;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link StepKernel} which handles as many particles per instruction as the
+ * CPU vector registers hold.
+ *
+ * The branch ladder of wall collisions is evaluated for every lane as a set
+ * of masks, lanes are updated with blends. The arithmetic is done in the
+ * same order as by the scalar kernel, so the results are identical. The
+ * remainder of a range which does not fill a vector is left to the scalar
+ * kernel.
+ *
+ * Requires the {@code jdk.incubator.vector} module, built with the
+ * {@code vector} profile and created by {@link StepKernel#create(ExperimentSettings, boolean)}.
+ */
+final class VectorStepKernel extends StepKernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    VectorStepKernel(final ExperimentSettings experimentSettings) {
+        super(experimentSettings);
+    }
+
+    @Override
+    boolean isVectorized() {
+        return true;
+    }
+
+    @Override
+    void move(final ParticleStore from, final ParticleStore to, final int[] order, final int first, final int last,
+              final double deltaTime) {
+        int upper = first + SPECIES.loopBound(last - first);
+        double fall = g * deltaTime * deltaTime / 2;
+        double speedUp = g * deltaTime;
+
+        for (int i = first; i < upper; i += SPECIES.length()) {
+            DoubleVector x;
+            DoubleVector y;
+            DoubleVector vX;
+            DoubleVector vY;
+
+            if (order != null) {
+                x = DoubleVector.fromArray(SPECIES, from.posX, 0, order, i);
+                y = DoubleVector.fromArray(SPECIES, from.posY, 0, order, i);
+                vX = DoubleVector.fromArray(SPECIES, from.velocityX, 0, order, i);
+                vY = DoubleVector.fromArray(SPECIES, from.velocityY, 0, order, i);
+            } else {
+                x = DoubleVector.fromArray(SPECIES, from.posX, i);
+                y = DoubleVector.fromArray(SPECIES, from.posY, i);
+                vX = DoubleVector.fromArray(SPECIES, from.velocityX, i);
+                vY = DoubleVector.fromArray(SPECIES, from.velocityY, i);
+            }
+
+            x.add(vX.mul(deltaTime)).intoArray(to.posX, i);
+            y.add(vY.mul(deltaTime)).sub(fall).intoArray(to.posY, i);
+            vX.intoArray(to.velocityX, i);
+            vY.sub(speedUp).intoArray(to.velocityY, i);
+        }
+
+        for (int i = first; i < upper; i++) {
+            to.id[i] = from.id[order != null ? order[i] : i];
+        }
+
+        super.move(from, to, order, upper, last, deltaTime);
+    }
+
+    @Override
+    double collideWithWalls(final ParticleStore store, final int first, final int last) {
+        int upper = first + SPECIES.loopBound(last - first);
+        DoubleVector speedSquaredMax = DoubleVector.zero(SPECIES);
+
+        for (int i = first; i < upper; i += SPECIES.length()) {
+            DoubleVector x = DoubleVector.fromArray(SPECIES, store.posX, i);
+            DoubleVector y = DoubleVector.fromArray(SPECIES, store.posY, i);
+            // most particles are far from every wall, their lanes would be left as they are
+            VectorMask<Double> near = y.compare(VectorOperators.GT, boxTopParticleBound)
+                    .or(y.compare(VectorOperators.LT, boxBottomParticleBound))
+                    .or(x.compare(VectorOperators.LT, boxLeftSideParticleBound))
+                    .or(x.compare(VectorOperators.GT, boxRightSideParticleBound))
+                    .or(x.compare(VectorOperators.GT, holeLeftSideParticleBound)
+                            .and(x.compare(VectorOperators.LT, holeRightSideParticleBound)));
+            DoubleVector speedSquared;
+
+            if (near.anyTrue()) {
+                speedSquared = collideWithWalls(store, i, x, y);
+            } else {
+                DoubleVector vX = DoubleVector.fromArray(SPECIES, store.velocityX, i);
+                DoubleVector vY = DoubleVector.fromArray(SPECIES, store.velocityY, i);
+                speedSquared = vX.mul(vX).add(vY.mul(vY));
+            }
+            speedSquaredMax = speedSquaredMax.max(speedSquared);
+        }
+
+        return Math.max(speedSquaredMax.reduceLanes(VectorOperators.MAX),
+                super.collideWithWalls(store, upper, last));
+    }
+
+    /**
+     * Collide the particles of a vector starting at the given index.
+     *
+     * @return Squared speeds of the particles after the collisions.
+     */
+    private DoubleVector collideWithWalls(final ParticleStore store, final int i, final DoubleVector posX,
+                                          final DoubleVector posY) {
+        DoubleVector x = posX;
+        DoubleVector y = posY;
+        DoubleVector vX = DoubleVector.fromArray(SPECIES, store.velocityX, i);
+        DoubleVector vY = DoubleVector.fromArray(SPECIES, store.velocityY, i);
+
+        // box top and bottom
+        VectorMask<Double> top = y.compare(VectorOperators.GT, boxTopParticleBound)
+                .and(vY.compare(VectorOperators.GT, 0));
+        VectorMask<Double> bottom = y.compare(VectorOperators.LT, boxBottomParticleBound)
+                .and(vY.compare(VectorOperators.LT, 0))
+                .andNot(top);
+        y = y.blend(boxTopParticleBound, top).blend(boxBottomParticleBound, bottom);
+        vY = vY.blend(vY.neg().sub(speedDeltaTop), top).blend(vY.neg().add(speedDeltaBottom), bottom);
+
+        // box sides, then the hole and the barrier sides around it
+        VectorMask<Double> left = x.compare(VectorOperators.LT, boxLeftSideParticleBound)
+                .and(vX.compare(VectorOperators.LT, 0));
+        VectorMask<Double> right = x.compare(VectorOperators.GT, boxRightSideParticleBound)
+                .and(vX.compare(VectorOperators.GT, 0))
+                .andNot(left);
+        VectorMask<Double> hole = x.compare(VectorOperators.GT, holeLeftSideParticleBound)
+                .and(x.compare(VectorOperators.LT, holeRightSideParticleBound))
+                .andNot(left.or(right));
+        VectorMask<Double> inside = hole.and(x.compare(VectorOperators.GT, holeLeftSideBound))
+                .and(x.compare(VectorOperators.LT, holeRightSideBound));
+        VectorMask<Double> holeTop = inside.and(y.compare(VectorOperators.GT, holeTopParticleBound))
+                .and(vY.compare(VectorOperators.GT, 0));
+        VectorMask<Double> holeBottom = inside.and(y.compare(VectorOperators.LT, holeBottomParticleBound))
+                .and(vY.compare(VectorOperators.LT, 0))
+                .andNot(holeTop);
+        VectorMask<Double> outside = y.compare(VectorOperators.GT, holeTopBound)
+                .or(y.compare(VectorOperators.LT, holeBottomBound));
+        VectorMask<Double> around = hole.andNot(inside).and(outside);
+        VectorMask<Double> aroundLeft = around.and(x.compare(VectorOperators.LT, barrierPosX))
+                .and(vX.compare(VectorOperators.GT, 0));
+        VectorMask<Double> aroundRight = around.and(x.compare(VectorOperators.GT, barrierPosX))
+                .and(vX.compare(VectorOperators.LT, 0))
+                .andNot(aroundLeft);
+
+        x = x.blend(boxLeftSideParticleBound, left)
+                .blend(boxRightSideParticleBound, right)
+                .blend(holeLeftSideParticleBound, aroundLeft)
+                .blend(holeRightSideParticleBound, aroundRight);
+        vX = vX.blend(vX.neg().add(speedDeltaSides), left.or(aroundRight))
+                .blend(vX.neg().sub(speedDeltaSides), right.or(aroundLeft));
+        y = y.blend(holeTopParticleBound, holeTop).blend(holeBottomParticleBound, holeBottom);
+        vY = vY.blend(vY.neg().sub(speedDeltaTop), holeTop).blend(vY.neg().add(speedDeltaBottom), holeBottom);
+
+        x.intoArray(store.posX, i);
+        y.intoArray(store.posY, i);
+        vX.intoArray(store.velocityX, i);
+        vY.intoArray(store.velocityY, i);
+
+        return vX.mul(vX).add(vY.mul(vY));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import eu.mivrenik.particles.batch.EnsembleReport;
+import eu.mivrenik.particles.batch.EnsembleRunner;
+import eu.mivrenik.particles.io.ExperimentLoader;
+import eu.mivrenik.particles.model.ExperimentSettings;
+
+/**
+ * Command line entry point which simulates an ensemble of seeds without the user interface.
+ *
+ * Settings are taken from an existing experiment file, for example one saved
+ * by the application:
+ *
+ * <pre>
+ * java -cp particles-in-box.jar eu.mivrenik.particles.BatchEntryPoint \
+ *     base.bin firstSeed seedCount outputDirectory [threads]
+ * </pre>
+ */
+public final class BatchEntryPoint {
+    private static final Logger LOG = Logger.getLogger(BatchEntryPoint.class.getName());
+
+    private BatchEntryPoint() {
+    }
+
+    /**
+     * Batch entry point.
+     *
+     * @param args
+     *            Experiment file to take settings from, first seed, number of
+     *            seeds, output directory and optionally the number of threads.
+     */
+    public static void main(final String[] args) throws Exception {
+        Locale.setDefault(Locale.US);
+
+        if (args.length < 4 || args.length > 5) {
+            System.err.println("Usage: BatchEntryPoint <experiment file> <first seed> <seed count> "
+                    + "<output directory> [threads]");
+            System.exit(2);
+        }
+
+        ExperimentLoader loader = new ExperimentLoader(new File(args[0]));
+        ExperimentSettings settings = loader.getExperimentSettings();
+        loader.close();
+
+        EnsembleRunner.Builder builder = EnsembleRunner.newBuilder()
+                .settings(settings)
+                .seeds(Integer.parseInt(args[1]), Integer.parseInt(args[2]))
+                .outputDirectory(new File(args[3]));
+        if (args.length == 5) {
+            builder.threads(Integer.parseInt(args[4]));
+        }
+        EnsembleRunner runner = builder.build();
+
+        LOG.info("Simulating seeds " + runner.getFirstSeed() + " to "
+                + (runner.getFirstSeed() + runner.getSeedCount() - 1));
+        EnsembleReport report = runner.run();
+        System.out.println(report);
+    }
+}
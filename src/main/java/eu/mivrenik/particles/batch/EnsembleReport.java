@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.batch;
+
+/**
+ * Totals of a batch of runs, see {@link EnsembleRunner#run()} and
+ * {@link SweepScheduler#run(java.util.List)}.
+ */
+public final class EnsembleReport {
+    private final int runCount;
+    private final long particleSteps;
+    private final long elapsedNanos;
+
+    EnsembleReport(final int runCount, final long particleSteps, final long elapsedNanos) {
+        this.runCount = runCount;
+        this.particleSteps = particleSteps;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * @return Simulation steps of every run multiplied by its particle count, summed over runs.
+     */
+    public long getParticleSteps() {
+        return particleSteps;
+    }
+
+    /**
+     * @return Wall-clock time of the whole ensemble in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return Aggregate throughput of all worker threads.
+     */
+    public double getParticleStepsPerSecond() {
+        return elapsedNanos > 0 ? particleSteps * 1e9 / elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d runs, %d particle steps in %.1f s (%.3g particle steps per second)", runCount,
+                particleSteps, elapsedNanos / 1e9, getParticleStepsPerSecond());
+    }
+}
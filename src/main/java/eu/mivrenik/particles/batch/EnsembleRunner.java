@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.batch;
+
+import eu.mivrenik.particles.io.SimulationWriter;
+import eu.mivrenik.particles.model.ExperimentSettings;
+import eu.mivrenik.particles.model.Simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an ensemble of experiments which only differ in the seed.
+ *
+ * Every run simulates the base settings with one seed of the range on a
+ * single thread and writes its own experiment file, see
+ * {@link #getOutputFile(int)}. Runs are spread over a fixed number of worker
+ * threads, one run per thread at a time.
+ */
+public final class EnsembleRunner {
+    private static final long CHECKPOINT_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
+    private final ExperimentSettings settings;
+    private final int firstSeed;
+    private final int seedCount;
+    private final File outputDirectory;
+    private final int threads;
+    private final ResultCache cache;
+
+    private EnsembleRunner(final Builder builder) {
+        settings = builder.settings;
+        firstSeed = builder.firstSeed;
+        seedCount = builder.seedCount;
+        outputDirectory = builder.outputDirectory;
+        threads = builder.threads;
+        cache = builder.cache;
+    }
+
+    public ExperimentSettings getSettings() {
+        return settings;
+    }
+
+    public int getFirstSeed() {
+        return firstSeed;
+    }
+
+    public int getSeedCount() {
+        return seedCount;
+    }
+
+    /**
+     * @return File the run with the given seed is written to.
+     */
+    public File getOutputFile(final int seed) {
+        return new File(outputDirectory, "seed-" + seed + ".bin");
+    }
+
+    /**
+     * Simulate every seed of the range and wait for all runs to finish.
+     *
+     * @return Aggregate throughput of the runs.
+     * @throws Exception
+     *             Failure of the first failed run in seed order, the remaining
+     *             runs are cancelled.
+     */
+    public EnsembleReport run() throws Exception {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IllegalStateException("Could not create output directory " + outputDirectory);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, seedCount));
+        List<Future<Long>> runs = new ArrayList<>(seedCount);
+        long start = System.nanoTime();
+
+        try {
+            for (int k = 0; k < seedCount; k++) {
+                int seed = firstSeed + k;
+                runs.add(pool.submit(() -> runSeed(seed)));
+            }
+
+            long particleSteps = 0;
+            for (Future<Long> run : runs) {
+                particleSteps += run.get();
+            }
+
+            return new EnsembleReport(seedCount, particleSteps, System.nanoTime() - start);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private long runSeed(final int seed) throws Exception {
+        return simulate(ExperimentSettings.newBuilder(settings).seed(seed).build(), getOutputFile(seed), cache);
+    }
+
+    /**
+     * Simulate one experiment on the calling thread, unless the cache has its
+     * file. Long simulations save checkpoints, a simulation which has one is
+     * resumed from it.
+     *
+     * @param cache
+     *            Cache to take the file from and to store it into, may be null.
+     * @return Number of particle steps calculated, zero for cached experiments.
+     * @throws IOException
+     *             If the run failed or was interrupted, it is not cached then.
+     */
+    static long simulate(final ExperimentSettings settings, final File outputFile, final ResultCache cache)
+            throws Exception {
+        if (cache != null && cache.get(settings, outputFile)) {
+            return 0;
+        }
+
+        SimulationWriter writer;
+        try (Simulator simulator = new Simulator(settings)) {
+            writer = new SimulationWriter(simulator, outputFile);
+            writer.setCheckpointInterval(CHECKPOINT_INTERVAL);
+            if (writer.getCheckpointFile().exists()) {
+                writer.resumeSimulation();
+            } else {
+                writer.saveSimulation();
+            }
+        }
+        if (cache != null) {
+            cache.put(settings, outputFile);
+        }
+
+        // steps before the checkpoint were calculated by an earlier run
+        return (writer.getStepCount() - writer.getResumedStepCount()) * settings.getParticleCount();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private ExperimentSettings settings;
+        private int firstSeed;
+        private int seedCount = 1;
+        private File outputDirectory = new File(".");
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private ResultCache cache;
+
+        /**
+         * @param settings
+         *            Settings shared by every run, their seed is replaced.
+         */
+        public Builder settings(final ExperimentSettings settings) {
+            this.settings = settings;
+
+            return this;
+        }
+
+        /**
+         * @param first
+         *            Seed of the first run.
+         * @param count
+         *            Number of runs, with consecutive seeds.
+         */
+        public Builder seeds(final int first, final int count) {
+            firstSeed = first;
+            seedCount = count;
+
+            return this;
+        }
+
+        public Builder outputDirectory(final File directory) {
+            outputDirectory = directory;
+
+            return this;
+        }
+
+        /**
+         * @param threads
+         *            Number of runs calculated at once, the number of
+         *            available processors by default.
+         */
+        public Builder threads(final int threads) {
+            this.threads = threads;
+
+            return this;
+        }
+
+        /**
+         * @param cache
+         *            Cache of experiment files to reuse and to store new ones into, none by default.
+         */
+        public Builder cache(final ResultCache cache) {
+            this.cache = cache;
+
+            return this;
+        }
+
+        public EnsembleRunner build() {
+            if (settings == null) {
+                throw new IllegalArgumentException("Settings are required");
+            }
+            if (seedCount < 1 || (long) firstSeed + seedCount - 1 > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid seed range " + firstSeed + " + " + seedCount);
+            }
+            if (threads < 1) {
+                throw new IllegalArgumentException("At least one thread is required");
+            }
+
+            return new EnsembleRunner(this);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.batch;
+
+import eu.mivrenik.particles.model.ExperimentSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Every combination of a few parameter values applied to base settings.
+ *
+ * Parameters which are not given keep the value of the base settings.
+ */
+public final class ParameterSweep {
+    private ParameterSweep() {
+    }
+
+    public static Builder newBuilder(final ExperimentSettings base) {
+        return new Builder(base);
+    }
+
+    public static class Builder {
+        private final ExperimentSettings base;
+        private float[] speedLoss;
+        private float[] g;
+        private float[] holeHeight;
+        private final List<int[]> particleCounts = new ArrayList<>();
+
+        Builder(final ExperimentSettings base) {
+            this.base = base;
+            speedLoss = new float[] {base.getSpeedLoss()};
+            g = new float[] {base.getG()};
+            holeHeight = new float[] {base.getHoleHeight()};
+        }
+
+        public Builder speedLoss(final float... values) {
+            speedLoss = values.clone();
+
+            return this;
+        }
+
+        public Builder g(final float... values) {
+            g = values.clone();
+
+            return this;
+        }
+
+        public Builder holeHeight(final float... values) {
+            holeHeight = values.clone();
+
+            return this;
+        }
+
+        /**
+         * Add particle counts to sweep over, may be called several times.
+         */
+        public Builder particleCount(final int left, final int right) {
+            particleCounts.add(new int[] {left, right});
+
+            return this;
+        }
+
+        /**
+         * @return Settings of every combination, the last parameter changes first.
+         */
+        public List<ExperimentSettings> build() {
+            List<int[]> counts = new ArrayList<>(particleCounts);
+            if (counts.isEmpty()) {
+                counts.add(new int[] {base.getParticleCountLeft(), base.getParticleCountRight()});
+            }
+
+            List<ExperimentSettings> runs = new ArrayList<>();
+            for (float speedLossValue : speedLoss) {
+                for (float gValue : g) {
+                    for (float holeHeightValue : holeHeight) {
+                        for (int[] count : counts) {
+                            runs.add(ExperimentSettings.newBuilder(base)
+                                    .speedLoss(speedLossValue)
+                                    .g(gValue)
+                                    .hole(base.getHolePosY(), holeHeightValue)
+                                    .particleCount(count[0], count[1])
+                                    .build());
+                        }
+                    }
+                }
+            }
+
+            return runs;
+        }
+    }
+}
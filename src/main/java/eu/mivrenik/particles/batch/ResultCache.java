@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.batch;
+
+import eu.mivrenik.particles.io.SimulationWriter;
+import eu.mivrenik.particles.model.ExperimentSettings;
+import eu.mivrenik.particles.model.Simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-disk cache of finished experiment files.
+ *
+ * Simulations are deterministic for the same settings, seed included, so an
+ * experiment file is looked up by a SHA-256 digest of every setting and of
+ * {@link Simulator#ENGINE_VERSION}. Entries are evicted least recently used
+ * first once the total size exceeds the cap. The order of use is kept in
+ * the modification time of the files, so it survives restarts.
+ *
+ * The cache may be shared by the threads of a batch, but not by several
+ * processes at once.
+ */
+public final class ResultCache {
+    private static final String EXTENSION = ".bin";
+
+    private final File directory;
+    private final long maxBytes;
+    private final Map<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true); // size by key, in use order
+    private long totalBytes;
+
+    /**
+     * @param directory
+     *            Directory to keep the files in, created if missing.
+     * @param maxBytes
+     *            Maximal total size of the cached files.
+     */
+    public ResultCache(final File directory, final long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory.toPath());
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null) {
+            throw new IOException("Could not list cache directory " + directory);
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String name = file.getName();
+            entries.put(name.substring(0, name.length() - EXTENSION.length()), file.length());
+            totalBytes += file.length();
+        }
+    }
+
+    /**
+     * @return Hex SHA-256 digest of every setting and the engine version.
+     */
+    public static String key(final ExperimentSettings settings) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(Simulator.ENGINE_VERSION);
+            out.writeInt(settings.getParticleCountLeft());
+            out.writeInt(settings.getParticleCountRight());
+            out.writeFloat(settings.getInitialSpeed());
+            out.writeFloat(settings.getSpeedLoss());
+            out.writeFloat(settings.getSpeedDeltaTop());
+            out.writeFloat(settings.getSpeedDeltaSides());
+            out.writeFloat(settings.getSpeedDeltaBottom());
+            out.writeFloat(settings.getG());
+            out.writeFloat(settings.getBoxWidth());
+            out.writeFloat(settings.getBoxHeight());
+            out.writeFloat(settings.getBarrierPosX());
+            out.writeFloat(settings.getBarrierWidth());
+            out.writeFloat(settings.getHolePosY());
+            out.writeFloat(settings.getHoleHeight());
+            out.writeFloat(settings.getParticleRadius());
+            out.writeInt(settings.getFps());
+            out.writeInt(settings.getDuration());
+            out.writeInt(settings.getSeed());
+            out.writeUTF(settings.getParticlePlacement().name());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        try {
+            StringBuilder key = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray())) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Put the cached experiment file of the settings at the target path.
+     * The file is hard linked where the file system allows it, so a hit
+     * takes no time regardless of the file size, and copied otherwise.
+     * Writers must replace the target rather than write into it, as
+     * {@link SimulationWriter} does, or they would change the entry.
+     *
+     * @return False if there is no file for the settings.
+     */
+    public boolean get(final ExperimentSettings settings, final File target) throws IOException {
+        String key = key(settings);
+        InputStream source;
+
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return false;
+            }
+
+            Path file = getFile(key).toPath();
+            if (!file.toFile().setLastModified(System.currentTimeMillis())) {
+                throw new IOException("Could not mark cache entry " + key + " as used");
+            }
+            Files.deleteIfExists(target.toPath());
+            try {
+                Files.createLink(target.toPath(), file);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                // opened under the lock, so an eviction during the copy does not take the data away
+                source = Files.newInputStream(file);
+            }
+        }
+
+        // copied without the lock, other runs are not held up by a large file
+        try (InputStream in = source) {
+            Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        return true;
+    }
+
+    /**
+     * Store a copy of a finished experiment file and evict the least
+     * recently used ones which no longer fit. Files larger than the cap are
+     * not stored.
+     */
+    public synchronized void put(final ExperimentSettings settings, final File source) throws IOException {
+        String key = key(settings);
+        long size = source.length();
+
+        if (size > maxBytes || entries.containsKey(key)) {
+            return;
+        }
+
+        Path temporary = Files.createTempFile(directory.toPath(), key, ".tmp");
+        try {
+            Files.copy(source.toPath(), temporary, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporary, getFile(key).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        entries.put(key, size);
+        totalBytes += size;
+
+        for (Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+             totalBytes > maxBytes && iterator.hasNext();) {
+            Map.Entry<String, Long> entry = iterator.next();
+
+            Files.deleteIfExists(getFile(entry.getKey()).toPath());
+            totalBytes -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return Total size of the cached files.
+     */
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    private File getFile(final String key) {
+        return new File(directory, key + EXTENSION);
+    }
+}
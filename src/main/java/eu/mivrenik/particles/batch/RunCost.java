@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.batch;
+
+import eu.mivrenik.particles.io.ExperimentLoader;
+import eu.mivrenik.particles.io.SimulationWriter;
+import eu.mivrenik.particles.model.ExperimentSettings;
+
+/**
+ * Resources an experiment is expected to take, estimated from its settings
+ * alone. Used to order and pack runs, see {@link SweepScheduler}.
+ */
+public final class RunCost {
+    // the two stepped particle stores, the checkpoint store, the initial particle objects and the cell grid,
+    // rounded up
+    private static final long BYTES_PER_PARTICLE = 200;
+    private static final long BASE_BYTES = 1 << 20;
+    private static final long BYTES_PER_SNAPSHOT_PARTICLE = 36; // refer to README#Technical Information
+    private static final long BYTES_PER_SNAPSHOT = 8;
+    // columns, ids and references of FrameCodec per particle of a chunk
+    private static final long CODEC_BYTES_PER_CHUNK_PARTICLE = 16;
+    private static final long CODEC_BYTES_PER_PARTICLE = 8; // particle indices by id
+
+    private final long memoryBytes;
+    private final long directBytes;
+    private final long diskBytes;
+    private final double particleSteps;
+
+    private RunCost(final long memoryBytes, final long directBytes, final long diskBytes,
+                    final double particleSteps) {
+        this.memoryBytes = memoryBytes;
+        this.directBytes = directBytes;
+        this.diskBytes = diskBytes;
+        this.particleSteps = particleSteps;
+    }
+
+    /**
+     * Estimate a run which writes the uncompressed experiment file, as batch runs do.
+     */
+    public static RunCost estimate(final ExperimentSettings settings) {
+        return estimate(settings, false);
+    }
+
+    /**
+     * The step count assumes particles keep the initial speed, fixed steps
+     * move the fastest particle by an eighth of the radius.
+     *
+     * @param compressed
+     *            The run writes the compressed file format, whose chunk and
+     *            codec buffers take heap as well. The size on disk is still
+     *            that of the uncompressed file.
+     */
+    public static RunCost estimate(final ExperimentSettings settings, final boolean compressed) {
+        long particles = settings.getParticleCount();
+        long seconds = settings.getDuration() * 60L;
+        long snapshots = seconds * settings.getFps();
+        double stepLength = settings.getParticleRadius() / 8 / settings.getInitialSpeed();
+
+        if (!(stepLength > 0) || Double.isInfinite(stepLength)) {
+            stepLength = 1.0 / Math.max(settings.getFps(), 1);
+        }
+
+        long snapshotBytes = BYTES_PER_SNAPSHOT + particles * BYTES_PER_SNAPSHOT_PARTICLE;
+        long heapBytes = BASE_BYTES + particles * BYTES_PER_PARTICLE;
+        // states waiting for the writer thread are kept in direct buffers of its frame ring
+        long directBytes = SimulationWriter.DEFAULT_BUFFERED_FRAMES * snapshotBytes;
+
+        if (compressed) {
+            long chunkFrames = SimulationWriter.getFramesPerChunk((int) particles);
+            // states, transformed states and deflated chunk
+            heapBytes += 3 * chunkFrames * snapshotBytes
+                    + chunkFrames * particles * CODEC_BYTES_PER_CHUNK_PARTICLE + particles * CODEC_BYTES_PER_PARTICLE;
+        }
+
+        return new RunCost(heapBytes + directBytes, directBytes,
+                ExperimentLoader.SETTINGS_SIZE + snapshots * snapshotBytes,
+                Math.ceil(seconds / stepLength) * particles);
+    }
+
+    /**
+     * @return Memory the simulation takes while it runs, heap and direct
+     *         buffers together.
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * @return Part of {@link #getMemoryBytes()} taken by direct buffers, off the heap.
+     */
+    public long getDirectBytes() {
+        return directBytes;
+    }
+
+    /**
+     * @return Size of the experiment file.
+     */
+    public long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * @return Number of particle steps, a measure of the processor time.
+     */
+    public double getParticleSteps() {
+        return particleSteps;
+    }
+}
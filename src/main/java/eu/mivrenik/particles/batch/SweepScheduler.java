@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.batch;
+
+import eu.mivrenik.particles.model.ExperimentSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a parameter sweep, see {@link ParameterSweep}, within memory and disk budgets.
+ *
+ * The cost of every run is estimated up front with {@link RunCost}. The
+ * sweep is refused if a run does not fit into the memory budget or all of the
+ * experiment files do not fit into the disk budget. Runs are started longest
+ * first, so the short ones fill the gaps at the end, and a run only starts
+ * once a thread is idle and the memory estimates of the running ones leave
+ * room for it. When the longest waiting run does not fit, a shorter one
+ * which does is started instead.
+ *
+ * Every finished run is appended to a CSV summary file right away, so the
+ * summary of an interrupted sweep is still usable.
+ */
+public final class SweepScheduler {
+    private static final String SUMMARY_HEADER = "file,particleCountLeft,particleCountRight,speedLoss,g,holeHeight,"
+            + "duration,seed,particleSteps,seconds";
+
+    private final int threads;
+    private final long memoryBudget;
+    private final long diskBudget;
+    private final File outputDirectory;
+    private final File summaryFile;
+    private final ResultCache cache;
+
+    private final Object lock = new Object();
+    private long memoryFree; // guarded by lock
+    private int running; // guarded by lock
+    private Exception failure; // guarded by lock
+
+    private SweepScheduler(final Builder builder) {
+        threads = builder.threads;
+        memoryBudget = builder.memoryBudget;
+        diskBudget = builder.diskBudget;
+        outputDirectory = builder.outputDirectory;
+        cache = builder.cache;
+        summaryFile = builder.summaryFile != null ? builder.summaryFile : new File(outputDirectory, "summary.csv");
+    }
+
+    /**
+     * @return File the run with the given index of the sweep is written to.
+     */
+    public File getOutputFile(final int index) {
+        return new File(outputDirectory, "run-" + index + ".bin");
+    }
+
+    public File getSummaryFile() {
+        return summaryFile;
+    }
+
+    /**
+     * Simulate every run and wait for all of them to finish.
+     *
+     * @param runs
+     *            Settings of the runs, e.g. built by {@link ParameterSweep}.
+     * @return Aggregate throughput of the runs.
+     * @throws IllegalArgumentException
+     *             If the runs do not fit into the budgets.
+     * @throws Exception
+     *             The first failure of a run, no more runs are started.
+     */
+    public EnsembleReport run(final List<ExperimentSettings> runs) throws Exception {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IllegalStateException("Could not create output directory " + outputDirectory);
+        }
+
+        List<Job> jobs = new ArrayList<>(runs.size());
+        long diskBytes = 0;
+        for (int index = 0; index < runs.size(); index++) {
+            Job job = new Job(index, runs.get(index));
+
+            if (job.cost.getMemoryBytes() > memoryBudget) {
+                throw new IllegalArgumentException("Run " + index + " needs " + job.cost.getMemoryBytes()
+                        + " bytes of memory, the budget is " + memoryBudget);
+            }
+            diskBytes += job.cost.getDiskBytes();
+            jobs.add(job);
+        }
+
+        long diskAvailable = diskBudget >= 0 ? diskBudget : outputDirectory.getUsableSpace();
+        if (diskBytes > diskAvailable) {
+            throw new IllegalArgumentException("The sweep needs " + diskBytes + " bytes of disk, the budget is "
+                    + diskAvailable);
+        }
+
+        jobs.sort(Comparator.comparingDouble((Job job) -> job.cost.getParticleSteps()).reversed());
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        AtomicLong particleSteps = new AtomicLong();
+        long start = System.nanoTime();
+
+        try (PrintWriter summary = new PrintWriter(Files.newBufferedWriter(summaryFile.toPath(),
+                StandardCharsets.UTF_8))) {
+            summary.println(SUMMARY_HEADER);
+            summary.flush();
+
+            synchronized (lock) {
+                memoryFree = memoryBudget;
+                running = 0;
+                failure = null;
+
+                while (!jobs.isEmpty() && failure == null) {
+                    Job job = running < threads ? takeFitting(jobs) : null;
+
+                    if (job == null) {
+                        lock.wait();
+                        continue;
+                    }
+                    memoryFree -= job.cost.getMemoryBytes();
+                    running++;
+                    pool.execute(() -> runJob(job, summary, particleSteps));
+                }
+                while (running > 0) {
+                    lock.wait();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+
+            if (summary.checkError()) {
+                throw new IOException("Could not write summary file " + summaryFile);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return new EnsembleReport(runs.size(), particleSteps.get(), System.nanoTime() - start);
+    }
+
+    /**
+     * @return Longest waiting job which fits into the free memory, null if none does.
+     */
+    private Job takeFitting(final List<Job> jobs) {
+        for (Iterator<Job> iterator = jobs.iterator(); iterator.hasNext();) {
+            Job job = iterator.next();
+
+            if (job.cost.getMemoryBytes() <= memoryFree) {
+                iterator.remove();
+                return job;
+            }
+        }
+
+        return null;
+    }
+
+    private void runJob(final Job job, final PrintWriter summary, final AtomicLong particleSteps) {
+        Exception error = null;
+
+        try {
+            long start = System.nanoTime();
+            File outputFile = getOutputFile(job.index);
+            long steps = EnsembleRunner.simulate(job.settings, outputFile, cache);
+            ExperimentSettings settings = job.settings;
+
+            particleSteps.addAndGet(steps);
+            String line = outputFile.getName() + "," + settings.getParticleCountLeft() + ","
+                    + settings.getParticleCountRight() + "," + settings.getSpeedLoss() + "," + settings.getG() + ","
+                    + settings.getHoleHeight() + "," + settings.getDuration() + "," + settings.getSeed() + "," + steps
+                    + "," + (System.nanoTime() - start) / 1e9;
+            synchronized (summary) {
+                summary.println(line);
+                summary.flush();
+            }
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            synchronized (lock) {
+                memoryFree += job.cost.getMemoryBytes();
+                running--;
+                if (error != null && failure == null) {
+                    failure = error;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    private static final class Job {
+        private final int index;
+        private final ExperimentSettings settings;
+        private final RunCost cost;
+
+        Job(final int index, final ExperimentSettings settings) {
+            this.index = index;
+            this.settings = settings;
+            cost = RunCost.estimate(settings);
+        }
+    }
+
+    public static class Builder {
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+        private long diskBudget = -1;
+        private File outputDirectory = new File(".");
+        private File summaryFile;
+        private ResultCache cache;
+
+        /**
+         * @param threads
+         *            Maximal number of runs calculated at once, the number of
+         *            available processors by default.
+         */
+        public Builder threads(final int threads) {
+            this.threads = threads;
+
+            return this;
+        }
+
+        /**
+         * @param bytes
+         *            Memory the running simulations may take together, heap
+         *            and direct buffers, see {@link RunCost#getMemoryBytes()}.
+         *            Three quarters of the maximal heap by default.
+         */
+        public Builder memoryBudget(final long bytes) {
+            memoryBudget = bytes;
+
+            return this;
+        }
+
+        /**
+         * @param bytes
+         *            Disk space the experiment files of the sweep may take,
+         *            the usable space of the output directory by default.
+         */
+        public Builder diskBudget(final long bytes) {
+            diskBudget = bytes;
+
+            return this;
+        }
+
+        public Builder outputDirectory(final File directory) {
+            outputDirectory = directory;
+
+            return this;
+        }
+
+        /**
+         * @param file
+         *            CSV file finished runs are appended to, summary.csv in
+         *            the output directory by default.
+         */
+        public Builder summaryFile(final File file) {
+            summaryFile = file;
+
+            return this;
+        }
+
+        /**
+         * @param cache
+         *            Cache of experiment files to reuse and to store new ones
+         *            into, none by default. Runs found in the cache take no
+         *            time and report no particle steps.
+         */
+        public Builder cache(final ResultCache cache) {
+            this.cache = cache;
+
+            return this;
+        }
+
+        public SweepScheduler build() {
+            if (threads < 1) {
+                throw new IllegalArgumentException("At least one thread is required");
+            }
+            if (memoryBudget < 1) {
+                throw new IllegalArgumentException("Invalid heap budget " + memoryBudget);
+            }
+
+            return new SweepScheduler(this);
+        }
+    }
+}
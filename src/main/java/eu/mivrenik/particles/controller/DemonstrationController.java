@@ -1,9 +1,9 @@
 package eu.mivrenik.particles.controller;
 
 import eu.mivrenik.particles.io.ExperimentLoader;
+import eu.mivrenik.particles.io.FrameCache;
+import eu.mivrenik.particles.io.FrameView;
 import eu.mivrenik.particles.model.ExperimentSettings;
-import eu.mivrenik.particles.model.ExperimentState;
-import eu.mivrenik.particles.model.Particle;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.event.ActionEvent;
@@ -19,6 +19,7 @@ import javafx.scene.control.Label;
 import javafx.scene.control.Slider;
 import javafx.scene.control.Spinner;
 import javafx.scene.paint.Color;
+import javafx.stage.WindowEvent;
 import javafx.util.Duration;
 
 import java.io.File;
@@ -28,10 +29,8 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Arrays;
 import java.util.ResourceBundle;
 import java.util.logging.Logger;
-import java.util.stream.DoubleStream;
 
 /**
  * Demonstration scene controller.
@@ -39,12 +38,14 @@ import java.util.stream.DoubleStream;
 public class DemonstrationController implements Initializable {
     private static final Logger LOG = Logger.getLogger(DemonstrationController.class.getName());
 
-    private int currentState;
+    private long currentState;
     private boolean playbackStarted;
 
     private NumberFormat timeElapsedFormat = new DecimalFormat("0.00");
 
     private ExperimentLoader loader;
+    private FrameCache cache;
+    private FrameView view; // reused for every state, so playback allocates no particles
 
     private Timeline timeline;
 
@@ -71,7 +72,10 @@ public class DemonstrationController implements Initializable {
 
     public DemonstrationController(final String filePath) throws IOException {
         File sourceFile = new File(filePath);
-        loader = new ExperimentLoader(sourceFile);
+        // scrubbing jumps between states, mapped states are read without file calls
+        loader = new ExperimentLoader(sourceFile, true);
+        // playback and scrubbing back are served from memory, states ahead are loaded in background
+        cache = new FrameCache(loader, Runtime.getRuntime().maxMemory() / 8);
     }
 
     @Override
@@ -92,6 +96,19 @@ public class DemonstrationController implements Initializable {
         fpsInput.valueProperty().addListener(
                 (ov, o, n) -> onFpsValueChanged(o, n));
 
+        // the experiment is released once its window is closed or shows another scene
+        canvas.sceneProperty().addListener((ov, oldScene, scene) -> {
+            if (scene != null) {
+                scene.windowProperty().addListener((wv, oldWindow, window) -> {
+                    if (window == null) {
+                        close();
+                    } else {
+                        window.addEventHandler(WindowEvent.WINDOW_HIDDEN, e -> close());
+                    }
+                });
+            }
+        });
+
         initializeCanvas();
         try {
             setState(0, false);
@@ -102,6 +119,19 @@ public class DemonstrationController implements Initializable {
         startPlayback();
     }
 
+    /**
+     * Stop playback, the state prefetcher and close the experiment file.
+     */
+    public void close() {
+        stopPlayback();
+        cache.close();
+        try {
+            loader.close();
+        } catch (IOException e) {
+            LOG.severe(e.getMessage());
+        }
+    }
+
     private void startPlayback() {
         stopTimer();
 
@@ -158,14 +188,14 @@ public class DemonstrationController implements Initializable {
         }
     }
 
-    private void setState(final int newValue, final boolean updateSlider) throws Exception {
+    private void setState(final long newValue, final boolean updateSlider) throws Exception {
         if (newValue >= loader.getStateCount()) {
             // Do something about it.
             // An exception, perhaps?
             return;
         }
 
-        ExperimentState state = loader.getState(newValue);
+        FrameView state = getView(newValue);
 
         double timeElapsed = state.getTime() / 1_000_000.0;
 
@@ -183,6 +213,12 @@ public class DemonstrationController implements Initializable {
         }
     }
 
+    private FrameView getView(final long index) throws IOException {
+        view = view == null ? cache.getView(index) : cache.getView(index, view);
+
+        return view;
+    }
+
     private void initializeCanvas() {
         ExperimentSettings settings = loader.getExperimentSettings();
 
@@ -196,7 +232,7 @@ public class DemonstrationController implements Initializable {
         gc.setTransform(mxx, 0.0, 0.0, myy, 0.0, canvas.getHeight());
     }
 
-    private void redraw(final ExperimentState state) {
+    private void redraw(final FrameView state) {
         ExperimentSettings settings = loader.getExperimentSettings();
         GraphicsContext gc = canvas.getGraphicsContext2D();
 
@@ -221,14 +257,14 @@ public class DemonstrationController implements Initializable {
                 barrierWidth,
                 upperBarrierHeight);
 
-        for (Particle p : state.getParticles()) {
-            if ((p.getId() & 1) == 0) {
+        for (int i = 0; i < state.size(); i++) {
+            if ((state.getId(i) & 1) == 0) {
                 gc.setFill(Color.RED);
             } else {
                 gc.setFill(Color.SKYBLUE);
             }
 
-            gc.fillOval(p.getPosX(), p.getPosY(), particleR, particleR);
+            gc.fillOval(state.getPosX(i), state.getPosY(i), particleR, particleR);
         }
     }
 
@@ -254,22 +290,22 @@ public class DemonstrationController implements Initializable {
         rightPartFirstTypeSeries.setName("Left particles");
         rightPartSecondTypeSeries.setName("Right particles");
 
-        for (int i = 0; i < loader.getStateCount(); i += Math.floorDiv(loader.getStateCount(), 10)) {
-            ExperimentState state = loader.getState(i);
+        for (long i = 0; i < loader.getStateCount(); i += Math.floorDiv(loader.getStateCount(), 10)) {
+            FrameView state = getView(i);
             int leftFirstTypeNum = 0;
             int leftSecondTypeNum = 0;
             int rightFirstTypeNum = 0;
             int rightSecondTypeNum = 0;
 
-            for (Particle particle : state.getParticles()) {
-                if (particle.getPosX() < leftBound) {
-                    if ((particle.getId() & 1) == 0) {
+            for (int j = 0; j < state.size(); j++) {
+                if (state.getPosX(j) < leftBound) {
+                    if ((state.getId(j) & 1) == 0) {
                         leftFirstTypeNum++;
                     } else {
                         leftSecondTypeNum++;
                     }
-                } else if (particle.getPosX() > rightBound) {
-                    if ((particle.getId() & 1) == 0) {
+                } else if (state.getPosX(j) > rightBound) {
+                    if ((state.getId(j) & 1) == 0) {
                         rightFirstTypeNum++;
                     } else {
                         rightSecondTypeNum++;
@@ -292,7 +328,7 @@ public class DemonstrationController implements Initializable {
         rightPartLine.getData().addAll(rightPartFirstTypeSeries, rightPartSecondTypeSeries);
     }
 
-    private void redrawParticlesNum(final ExperimentState state) {
+    private void redrawParticlesNum(final FrameView state) {
         // first type of particles - particles which originally located on the left side
         // second type of particles - particles which originally located on the right side
         int leftFirstTypeNum = 0;
@@ -306,18 +342,19 @@ public class DemonstrationController implements Initializable {
         leftPartSeries.setName("Left particles");
         rightPartSeries.setName("Right particles");
 
-        double leftBound = state.getSettings().getBarrierPosX() - 0.5 * state.getSettings().getBarrierWidth();
-        double rightBound = state.getSettings().getBarrierPosX() + 0.5 * state.getSettings().getBarrierWidth();
+        ExperimentSettings settings = loader.getExperimentSettings();
+        double leftBound = settings.getBarrierPosX() - 0.5 * settings.getBarrierWidth();
+        double rightBound = settings.getBarrierPosX() + 0.5 * settings.getBarrierWidth();
 
-        for (Particle particle : state.getParticles()) {
-            if (particle.getPosX() < leftBound) {
-                if ((particle.getId() & 1) == 0) {
+        for (int i = 0; i < state.size(); i++) {
+            if (state.getPosX(i) < leftBound) {
+                if ((state.getId(i) & 1) == 0) {
                     leftFirstTypeNum++;
                 } else {
                     leftSecondTypeNum++;
                 }
-            } else if (particle.getPosX() > rightBound) {
-                if ((particle.getId() & 1) == 0) {
+            } else if (state.getPosX(i) > rightBound) {
+                if ((state.getId(i) & 1) == 0) {
                     rightFirstTypeNum++;
                 } else {
                     rightSecondTypeNum++;
@@ -335,13 +372,14 @@ public class DemonstrationController implements Initializable {
         particlesNumBar.getData().addAll(leftPartSeries, rightPartSeries);
     }
 
-    private void redrawMaxwellDistribution(final ExperimentState state, final int binsNum) {
+    private void redrawMaxwellDistribution(final FrameView state, final int binsNum) {
         ArrayList<Double> x = new ArrayList<>(binsNum);
         ArrayList<Double> yExperimental = new ArrayList<>(binsNum);
 
-        DoubleStream speedStream = Arrays.stream(state.getParticles())
-                .mapToDouble(Particle::getSpeed);
-        double maxVelocity = speedStream.max().orElse(1.0);
+        double maxVelocity = state.size() > 0 ? 0.0 : 1.0;
+        for (int i = 0; i < state.size(); i++) {
+            maxVelocity = Math.max(state.getSpeed(i), maxVelocity);
+        }
 
         double deltaVelocity = maxVelocity / binsNum;
 
@@ -358,15 +396,15 @@ public class DemonstrationController implements Initializable {
             yExperimental.add(0.0);
         }
 
-        for (Particle particle : state.getParticles()) {
-            double speed = particle.getSpeed();
+        for (int i = 0; i < state.size(); i++) {
+            double speed = state.getSpeed(i);
 
             int idx = Math.min((int) Math.floor(speed / deltaVelocity), binsNum - 1);
             yExperimental.set(idx, yExperimental.get(idx) + 1);
         }
 
         for (int i = 0; i < yExperimental.size(); i++) {
-            yExperimental.set(i, yExperimental.get(i) / (state.getParticles().length * deltaVelocity));
+            yExperimental.set(i, yExperimental.get(i) / (state.size() * deltaVelocity));
         }
 
         for (int i = 0; i < yExperimental.size(); i++) {
@@ -386,10 +424,10 @@ public class DemonstrationController implements Initializable {
         lineChart.getData().addAll(experimentalSeries, theoreticalSeries);
     }
 
-    private void redrawBoltzmannDistribution(final ExperimentState state, final int binsNum) {
+    private void redrawBoltzmannDistribution(final FrameView state, final int binsNum) {
         final NumberFormat dataFormat = new DecimalFormat("#.##");
 
-        final double deltaHeight = state.getSettings().getBoxHeight() / binsNum;
+        final double deltaHeight = loader.getExperimentSettings().getBoxHeight() / binsNum;
         double[] x = new double[binsNum];
         int[] y = new int[binsNum];
         XYChart.Series<String, Number> boltzmannSeries = new XYChart.Series<>();
@@ -401,8 +439,8 @@ public class DemonstrationController implements Initializable {
             x[i] = deltaHeight * (i + 1);
         }
 
-        for (Particle particle : state.getParticles()) {
-            int chunk = (int) ((particle.getPosY() - deltaHeight / 2.0) / deltaHeight);
+        for (int i = 0; i < state.size(); i++) {
+            int chunk = (int) ((state.getPosY(i) - deltaHeight / 2.0) / deltaHeight);
             y[chunk]++;
         }
 
@@ -438,7 +476,7 @@ public class DemonstrationController implements Initializable {
      */
     public void onTimeSliderValueChanged(final Number oldValue, final Number newValue) {
         try {
-            setState(newValue.intValue(), false);
+            setState(newValue.longValue(), false);
         } catch (Exception e) {
             LOG.severe(e.getMessage());
             e.printStackTrace();
@@ -195,13 +195,11 @@ public class NewExperimentController {
                 long remainingTime;
                 long currTime = 0;
 
-                while (currTime < simulationDuration) {
+                while (currTime < simulationDuration && !isCancelled()) {
                     remainingTime = TimeUnit.MICROSECONDS.toSeconds(simulationDuration - currTime);
                     updateMessage(Long.toString(remainingTime) + " seconds remaining");
-                    if (simulationWriter.getSimulator().getLastState() != null) {
-                        currTime = simulationWriter.getSimulator().getLastState().getTime();
-                        updateProgress(currTime, simulationDuration);
-                    }
+                    currTime = simulationWriter.getSimulator().getLastTime();
+                    updateProgress(currTime, simulationDuration);
                 }
 
                 return null;
@@ -219,10 +217,25 @@ public class NewExperimentController {
         Task<Void> simulationTask = new Task<Void>() {
             @Override
             protected Void call() throws Exception {
-                simulationWriter.saveSimulation();
+                try {
+                    simulationWriter.saveSimulation();
+                } finally {
+                    simulationWriter.getSimulator().close();
+                }
                 return null;
             }
         };
+        simulationTask.setOnFailed(e -> {
+            progressBarTask.cancel();
+            if (!progressBarStage.isShowing()) {
+                // stopped by the cancel button
+                return;
+            }
+            progressBarStage.close();
+            Throwable error = simulationTask.getException();
+            Dialog.createExceptionDialog("Simulation failed",
+                    error instanceof Exception ? (Exception) error : new Exception(error));
+        });
 
         Thread simulationThread = new Thread(simulationTask);
         Thread progressBarThread = new Thread(progressBarTask);
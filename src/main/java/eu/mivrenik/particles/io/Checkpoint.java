@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import eu.mivrenik.particles.model.ExperimentSettings;
+import eu.mivrenik.particles.model.Particle;
+import eu.mivrenik.particles.model.ParticleStore;
+import eu.mivrenik.particles.model.Simulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Everything needed to continue writing an experiment file: the particles,
+ * the position in the output and the counters of {@link SimulationWriter}.
+ *
+ * Random numbers are only drawn by the initial distribution, so there is no
+ * generator state to keep. A checkpoint is tied to the settings of its
+ * experiment and to {@link Simulator#ENGINE_VERSION}.
+ *
+ * The file starts with a magic number and a version, followed by the engine
+ * version, the settings as in the header of an experiment file, the output
+ * length, the index of the next state, the step count, the length of the
+ * next step and the particles at the time of the checkpoint.
+ */
+final class Checkpoint {
+    private static final int MAGIC = 0x50494243; // "PIBC"
+    private static final int VERSION = 1;
+
+    private final ExperimentSettings settings;
+    private final long outputLength;
+    private final long snapshot;
+    private final long stepCount;
+    private final long deltaTime;
+    private final ParticleStore state;
+
+    /**
+     * @param outputLength
+     *            Length of the experiment file at the checkpoint.
+     * @param snapshot
+     *            Index of the next state to write.
+     * @param stepCount
+     *            Number of steps calculated so far.
+     * @param deltaTime
+     *            Length of the next step in microseconds.
+     * @param state
+     *            Particles at the checkpoint, in the order the next step reads them.
+     */
+    Checkpoint(final ExperimentSettings settings, final long outputLength, final long snapshot, final long stepCount,
+               final long deltaTime, final ParticleStore state) {
+        this.settings = settings;
+        this.outputLength = outputLength;
+        this.snapshot = snapshot;
+        this.stepCount = stepCount;
+        this.deltaTime = deltaTime;
+        this.state = state;
+    }
+
+    long getOutputLength() {
+        return outputLength;
+    }
+
+    long getSnapshot() {
+        return snapshot;
+    }
+
+    long getStepCount() {
+        return stepCount;
+    }
+
+    long getDeltaTime() {
+        return deltaTime;
+    }
+
+    ParticleStore getState() {
+        return state;
+    }
+
+    /**
+     * Replace the checkpoint file atomically, so a crash while writing leaves the previous checkpoint intact.
+     */
+    void write(final File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream fileOut = new FileOutputStream(temporary)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(Simulator.ENGINE_VERSION);
+            SimulationWriter.writeSettings(out, settings);
+            out.writeLong(outputLength);
+            out.writeLong(snapshot);
+            out.writeLong(stepCount);
+            out.writeLong(deltaTime);
+            out.writeLong(state.getTime());
+            out.writeInt(state.size());
+            for (int i = 0; i < state.size(); i++) {
+                out.writeInt(state.getId(i));
+                out.writeDouble(state.getPosX(i));
+                out.writeDouble(state.getPosY(i));
+                out.writeDouble(state.getVelocityX(i));
+                out.writeDouble(state.getVelocityY(i));
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @throws IOException
+     *             If the file is missing, damaged or belongs to other settings or engine version.
+     */
+    static Checkpoint read(final File file, final ExperimentSettings settings) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a checkpoint");
+            }
+            if (in.readInt() != Simulator.ENGINE_VERSION) {
+                throw new IOException("Checkpoint " + file + " was saved by another version of the simulator");
+            }
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            SimulationWriter.writeSettings(new DataOutputStream(expected), settings);
+            byte[] header = new byte[expected.size()];
+            in.readFully(header);
+            if (!Arrays.equals(header, expected.toByteArray())) {
+                throw new IOException("Checkpoint " + file + " belongs to an experiment with other settings");
+            }
+
+            long outputLength = in.readLong();
+            long snapshot = in.readLong();
+            long stepCount = in.readLong();
+            long deltaTime = in.readLong();
+            long time = in.readLong();
+            ParticleStore state = new ParticleStore(in.readInt());
+            Particle.Builder particleBuilder = Particle.newBuilder();
+
+            for (int i = 0; i < state.size(); i++) {
+                state.set(i, particleBuilder
+                        .id(in.readInt())
+                        .position(in.readDouble(), in.readDouble())
+                        .velocity(in.readDouble(), in.readDouble())
+                        .build());
+            }
+            state.setTime(time);
+
+            return new Checkpoint(settings, outputLength, snapshot, stepCount, deltaTime, state);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writer of the states of a compressed (version 2) experiment file, see {@link ChunkedFrames}.
+ *
+ * States are collected until a chunk is complete, which is then transformed,
+ * deflated and appended to the file with its length. {@link #finish()}
+ * writes the last incomplete chunk and the footer locating every chunk.
+ * The writer has to be closed whether the file was finished or not.
+ */
+final class ChunkedFrameWriter implements FrameRing.Sink, Closeable {
+    private final FileChannel channel;
+    private final int particleCount;
+    private final int framesPerChunk;
+    private final ByteBuffer states;
+    private final byte[] transformed;
+    private final Deflater deflater = new Deflater();
+    private byte[] compressed;
+    private long[] chunkOffsets;
+    private int chunkCount;
+    private long stateCount;
+
+    /**
+     * @param channel
+     *            File positioned after the header or the last complete chunk.
+     * @param chunkOffsets
+     *            Chunks already in the file followed by the end of the last one, see
+     *            {@link ChunkedFrames#scanChunks(FileChannel, long, long)}.
+     */
+    ChunkedFrameWriter(final FileChannel channel, final int particleCount, final int framesPerChunk,
+                       final long[] chunkOffsets) {
+        int frameSize = Long.BYTES + particleCount * (Integer.BYTES + 4 * Double.BYTES);
+
+        this.channel = channel;
+        this.particleCount = particleCount;
+        this.framesPerChunk = framesPerChunk;
+        this.chunkOffsets = Arrays.copyOf(chunkOffsets, Math.max(chunkOffsets.length, 16));
+        this.chunkCount = chunkOffsets.length - 1;
+        stateCount = (long) chunkCount * framesPerChunk;
+        states = ByteBuffer.allocate(framesPerChunk * frameSize);
+        transformed = new byte[states.capacity()];
+        compressed = new byte[states.capacity() + states.capacity() / 16 + 64];
+    }
+
+    int getFramesPerChunk() {
+        return framesPerChunk;
+    }
+
+    @Override
+    public void write(final ByteBuffer[] frames, final int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            states.put(frames[i]);
+            stateCount++;
+            if (!states.hasRemaining()) {
+                writeChunk();
+            }
+        }
+    }
+
+    /**
+     * Write the last chunk and the footer, see README#Technical Information.
+     */
+    void finish() throws IOException {
+        if (states.position() > 0) {
+            writeChunk();
+        }
+
+        long indexOffset = chunkOffsets[chunkCount];
+        ByteBuffer footer = ByteBuffer.allocate(chunkCount * Long.BYTES + ChunkedFrames.FOOTER_SIZE);
+        for (int i = 0; i < chunkCount; i++) {
+            footer.putLong(chunkOffsets[i]);
+        }
+        footer.putLong(indexOffset);
+        footer.putLong(stateCount);
+        footer.putInt(ChunkedFrames.MAGIC);
+        footer.flip();
+        write(footer);
+    }
+
+    /**
+     * Release the deflater. The channel is not closed.
+     */
+    @Override
+    public void close() {
+        deflater.end();
+    }
+
+    private void writeChunk() throws IOException {
+        int frames = states.position() / (states.capacity() / framesPerChunk);
+
+        states.flip();
+        FrameCodec.encode(states, frames, particleCount, transformed);
+        states.clear();
+
+        deflater.reset();
+        deflater.setInput(transformed, 0, frames * (transformed.length / framesPerChunk));
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES);
+        prefix.putInt(0, length);
+        write(prefix);
+        write(ByteBuffer.wrap(compressed, 0, length));
+
+        if (chunkCount + 1 >= chunkOffsets.length) {
+            chunkOffsets = Arrays.copyOf(chunkOffsets, chunkOffsets.length * 2);
+        }
+        chunkOffsets[chunkCount + 1] = chunkOffsets[chunkCount] + Integer.BYTES + length;
+        chunkCount++;
+    }
+
+    private void write(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * States of a compressed (version 2) experiment file, refer to
+ * README#Technical Information for the format.
+ *
+ * States are stored in chunks of {@code framesPerChunk} states, transformed
+ * by {@link FrameCodec} and deflated. The footer of the file locates every
+ * chunk, so a state is found in constant time and only its chunk is
+ * inflated. Each thread keeps the last chunk it inflated, so reading
+ * states in order inflates every chunk once.
+ */
+final class ChunkedFrames {
+    static final int MAGIC = 0x8F504932; // sign bit set, so it is no particle count of version 1 files
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 2 * Integer.BYTES + ExperimentLoader.SETTINGS_SIZE + Integer.BYTES;
+    static final int FOOTER_SIZE = 2 * Long.BYTES + Integer.BYTES;
+    private static final int CHUNK_SIZE = 1 << 21; // about the states of a chunk before compression
+
+    private final FileChannel channel;
+    private final int frameSize;
+    private final int particleCount;
+    private final int framesPerChunk;
+    private final long[] chunkOffsets; // followed by the end of the last chunk
+    private final long stateCount;
+    private final ThreadLocal<Decoder> decoders = ThreadLocal.withInitial(this::newDecoder);
+    private final List<Decoder> created = new ArrayList<>(); // decoders of every thread, guarded by itself
+    private volatile boolean closed;
+
+    /**
+     * Locate the chunks of the file from its footer. Files without a footer,
+     * which were not completely written, are scanned for complete chunks.
+     *
+     * @param framesPerChunk
+     *            States per chunk, from the header.
+     */
+    ChunkedFrames(final FileChannel channel, final int frameSize, final int particleCount,
+                  final int framesPerChunk) throws IOException {
+        if (framesPerChunk < 1) {
+            throw new IOException("Broken experiment file header, " + framesPerChunk + " states per chunk");
+        }
+
+        this.channel = channel;
+        this.frameSize = frameSize;
+        this.particleCount = particleCount;
+        this.framesPerChunk = framesPerChunk;
+
+        long length = channel.size();
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        if (length >= HEADER_SIZE + FOOTER_SIZE) {
+            readFully(channel, footer, length - FOOTER_SIZE);
+        }
+
+        if (footer.getInt(2 * Long.BYTES) == MAGIC) {
+            long indexOffset = footer.getLong(0);
+            stateCount = footer.getLong(Long.BYTES);
+
+            int chunkCount = (int) ((stateCount + framesPerChunk - 1) / framesPerChunk);
+            ByteBuffer index = ByteBuffer.allocate(chunkCount * Long.BYTES);
+            readFully(channel, index, indexOffset);
+            chunkOffsets = new long[chunkCount + 1];
+            for (int i = 0; i < chunkCount; i++) {
+                chunkOffsets[i] = index.getLong(i * Long.BYTES);
+            }
+            chunkOffsets[chunkCount] = indexOffset;
+        } else {
+            chunkOffsets = scanChunks(channel, HEADER_SIZE, length);
+            stateCount = (long) (chunkOffsets.length - 1) * framesPerChunk;
+        }
+    }
+
+    /**
+     * @return Number of states per chunk for states of the given size.
+     */
+    static int getFramesPerChunk(final int frameSize) {
+        return Math.max(1, CHUNK_SIZE / frameSize);
+    }
+
+    /**
+     * Locate complete chunks by their length prefixes.
+     *
+     * @return Offsets of the chunks followed by the end of the last complete one.
+     */
+    static long[] scanChunks(final FileChannel channel, final long from, final long to) throws IOException {
+        long[] offsets = new long[16];
+        int count = 0;
+        long offset = from;
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+
+        while (offset + Integer.BYTES <= to) {
+            length.clear();
+            readFully(channel, length, offset);
+
+            long end = offset + Integer.BYTES + length.getInt(0);
+            if (end > to) {
+                break;
+            }
+            if (count + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[count++] = offset;
+            offset = end;
+        }
+        offsets[count] = offset;
+
+        return Arrays.copyOf(offsets, count + 1);
+    }
+
+    long getStateCount() {
+        return stateCount;
+    }
+
+    /**
+     * Copy a state into the buffer, see {@link ExperimentLoader#readState(long, ByteBuffer)}.
+     */
+    void readState(final long index, final ByteBuffer target) throws IOException {
+        if (closed) {
+            throw new IOException("Experiment file is closed");
+        }
+
+        Decoder decoder = decoders.get();
+        int chunk = (int) (index / framesPerChunk);
+
+        if (decoder.chunk != chunk) {
+            decoder.decode(chunk);
+        }
+
+        ByteBuffer states = decoder.states.duplicate();
+        int offset = (int) (index % framesPerChunk) * frameSize;
+        states.limit(offset + frameSize);
+        states.position(offset);
+        target.put(states);
+    }
+
+    /**
+     * Release the inflaters of every thread. States must not be read while
+     * or after it is called.
+     */
+    void close() {
+        closed = true;
+        synchronized (created) {
+            for (Decoder decoder : created) {
+                decoder.inflater.end();
+            }
+            created.clear();
+        }
+        decoders.remove();
+    }
+
+    private Decoder newDecoder() {
+        Decoder decoder = new Decoder();
+
+        synchronized (created) {
+            created.add(decoder);
+        }
+
+        return decoder;
+    }
+
+    static void readFully(final FileChannel channel, final ByteBuffer target, final long position)
+            throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new EOFException("Experiment file ends at " + (position + target.position()));
+            }
+        }
+    }
+
+    /**
+     * Buffers of a thread and the chunk it inflated last.
+     */
+    private final class Decoder {
+        private final Inflater inflater = new Inflater();
+        private final ByteBuffer states = ByteBuffer.allocate(framesPerChunk * frameSize);
+        private final byte[] transformed = new byte[framesPerChunk * frameSize];
+        private ByteBuffer compressed = ByteBuffer.allocate(0);
+        private int chunk = -1;
+
+        private void decode(final int index) throws IOException {
+            long offset = chunkOffsets[index] + Integer.BYTES;
+            int length = (int) (chunkOffsets[index + 1] - offset);
+            int frames = (int) Math.min(framesPerChunk, stateCount - (long) index * framesPerChunk);
+
+            if (compressed.capacity() < length) {
+                compressed = ByteBuffer.allocate(length);
+            }
+            compressed.clear();
+            compressed.limit(length);
+            readFully(channel, compressed, offset);
+
+            chunk = -1;
+            inflater.reset();
+            inflater.setInput(compressed.array(), 0, length);
+            try {
+                int size = frames * frameSize;
+                int inflated = 0;
+                while (inflated < size && !inflater.finished()) {
+                    int read = inflater.inflate(transformed, inflated, size - inflated);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += read;
+                }
+                if (inflated != size) {
+                    throw new IOException("Chunk " + index + " of experiment file is truncated");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Chunk " + index + " of experiment file is broken", e);
+            }
+
+            FrameCodec.decode(transformed, frames, particleCount, states);
+            chunk = index;
+        }
+    }
+}
@@ -24,19 +24,37 @@ package eu.mivrenik.particles.io;
 
 import eu.mivrenik.particles.model.ExperimentSettings;
 import eu.mivrenik.particles.model.ExperimentState;
-import eu.mivrenik.particles.model.Particle;
 
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class ExperimentLoader {
+/**
+ * Reader of experiment files, refer to README#Technical Information for the format.
+ *
+ * States are read with positional reads, from memory-mapped segments or from
+ * chunks inflated by every thread on its own, there is no shared file
+ * pointer. A loader can be shared by threads reading different states in
+ * parallel, as long as every thread uses its own {@link FrameView}.
+ * Interrupting a thread blocked in a read closes the file, see
+ * {@link java.nio.channels.InterruptibleChannel}.
+ */
+public class ExperimentLoader implements Closeable {
     public static final int SETTINGS_SIZE = 72; // refer to README#Technical Information for more detail
     private final int dataChunkSize;
 
     private final ExperimentSettings experimentSettings;
-    private int stateCount;
-    private RandomAccessFile dataSource;
+    private final long stateCount;
+    private final RandomAccessFile dataSource;
+    private final MappedFrames frames; // null unless memory-mapped
+    private final ChunkedFrames chunks; // null unless compressed
 
     private ExperimentSettings readWorldSettings(final RandomAccessFile dataSource) throws IOException {
         int particleCountLeft = dataSource.readInt();
@@ -76,21 +94,58 @@ public class ExperimentLoader {
 
 
     public ExperimentLoader(final File sourceFile) throws IOException {
+        this(sourceFile, false);
+    }
+
+    /**
+     * Open a file of either format version.
+     *
+     * @param memoryMapped
+     *            Map the states of the file into memory instead of reading
+     *            them with file calls. It makes random access to states
+     *            cheap, the OS pages the file in and out as needed.
+     *            Compressed files are read with file calls regardless.
+     */
+    public ExperimentLoader(final File sourceFile, final boolean memoryMapped) throws IOException {
         this.dataSource = new RandomAccessFile(sourceFile, "r");
 
+        // version 1 files start with a particle count, which is never negative like the magic of later versions
+        boolean compressed = dataSource.length() >= Integer.BYTES && dataSource.readInt() == ChunkedFrames.MAGIC;
+        if (compressed) {
+            int version = dataSource.readInt();
+            if (version != ChunkedFrames.VERSION) {
+                throw new IOException("Unsupported experiment file version " + version);
+            }
+        } else {
+            dataSource.seek(0);
+        }
+
         experimentSettings = readWorldSettings(this.dataSource);
 
         // refer to README#Technical Information for more detail on calculating those numbers
         dataChunkSize = experimentSettings.getParticleCount() * 36 + 8;
 
-        stateCount = (int) ((dataSource.length() - SETTINGS_SIZE) / dataChunkSize);
+        if (compressed) {
+            chunks = new ChunkedFrames(dataSource.getChannel(), dataChunkSize, experimentSettings.getParticleCount(),
+                    dataSource.readInt());
+            stateCount = chunks.getStateCount();
+            frames = null;
+        } else {
+            chunks = null;
+            stateCount = (dataSource.length() - SETTINGS_SIZE) / dataChunkSize;
+            frames = memoryMapped
+                    ? new MappedFrames(dataSource.getChannel(), SETTINGS_SIZE, dataChunkSize, stateCount) : null;
+        }
     }
 
     public int getDataChunkSize() {
         return dataChunkSize;
     }
 
-    public int getStateCount() {
+    /**
+     * @return Number of states in the file, files of long experiments can hold more than 2^31 of them.
+     */
+    public long getStateCount() {
         return stateCount;
     }
 
@@ -102,32 +157,128 @@ public class ExperimentLoader {
         return dataSource;
     }
 
-    public ExperimentState getState(final int index) throws Exception {
+    public boolean isMemoryMapped() {
+        return frames != null;
+    }
+
+    /**
+     * @return Version of the file format, 2 for compressed files, refer to README#Technical Information.
+     */
+    public int getFormatVersion() {
+        return chunks != null ? ChunkedFrames.VERSION : 1;
+    }
+
+    /**
+     * Close the file and release the inflaters of compressed files. States
+     * must not be read while or after it is called.
+     */
+    @Override
+    public void close() throws IOException {
+        if (chunks != null) {
+            chunks.close();
+        }
+        dataSource.close();
+    }
+
+    public ExperimentState getState(final long index) throws Exception {
+        return getView(index).toState(experimentSettings);
+    }
+
+    /**
+     * @return View of the state which decodes particles on access.
+     */
+    public FrameView getView(final long index) throws IOException {
+        return getView(index, new FrameView(experimentSettings.getParticleCount()));
+    }
+
+    /**
+     * Move a view to another state, nothing is allocated once the view was used with this loader.
+     *
+     * @param view
+     *            View previously returned by this loader.
+     * @return The view.
+     */
+    public FrameView getView(final long index, final FrameView view) throws IOException {
         if (index < 0 || index >= getStateCount()) {
             throw new IndexOutOfBoundsException();
         }
+        if (view.size() != experimentSettings.getParticleCount()) {
+            throw new IllegalArgumentException("View of " + view.size() + " particles does not fit the experiment");
+        }
+
+        if (frames != null) {
+            view.wrap(frames.getSegment(index), frames.getOffset(index));
+        } else {
+            ByteBuffer buffer = view.getOwnBuffer(dataChunkSize);
+            readState(index, buffer);
+            view.wrap(buffer, 0);
+        }
 
-        dataSource.seek(getStatePosition(index));
+        return view;
+    }
 
-        long time = dataSource.readLong();
-        Particle[] particles = new Particle[experimentSettings.getParticleCount()];
+    /**
+     * @return Sized spliterator of every state of the file, the views it passes
+     *         are only valid during the action, see {@link #views()}.
+     */
+    public Spliterator<FrameView> spliterator() {
+        return new FrameSpliterator(this, 0, getStateCount());
+    }
 
-        for (int i = 0; i < experimentSettings.getParticleCount(); i++) {
-            particles[i] = Particle.newBuilder()
-                    .id(dataSource.readInt())
-                    .position(dataSource.readDouble(), dataSource.readDouble())
-                    .velocity(dataSource.readDouble(), dataSource.readDouble())
-                    .build();
+    /**
+     * Stream every state of the file in order. A parallel stream splits the
+     * file into contiguous ranges of states read on the common pool.
+     *
+     * Each thread moves one view from state to state, so a view must not be
+     * kept after the stage which received it, map it to a value or use
+     * {@link FrameView#toState(ExperimentSettings)} instead.
+     */
+    public Stream<FrameView> views() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Copy the stored bytes of a state, with a single positional read unless
+     * the file is memory-mapped or compressed.
+     *
+     * @param target
+     *            Heap buffer of at least {@link #getDataChunkSize()} bytes,
+     *            it is flipped to hold exactly the state.
+     */
+    void readState(final long index, final ByteBuffer target) throws IOException {
+        if (index < 0 || index >= getStateCount()) {
+            throw new IndexOutOfBoundsException();
         }
 
-        return ExperimentState.newBuilder()
-                .time(time)
-                .particles(particles)
-                .settings(experimentSettings)
-                .build();
+        target.clear();
+        if (chunks != null) {
+            chunks.readState(index, target);
+        } else if (frames != null) {
+            ByteBuffer segment = frames.getSegment(index).duplicate();
+            int offset = frames.getOffset(index);
+
+            segment.limit(offset + dataChunkSize);
+            segment.position(offset);
+            target.put(segment);
+        } else {
+            // positional reads leave the file pointer alone, so threads do not disturb each other
+            FileChannel channel = dataSource.getChannel();
+            long position = getStatePosition(index);
+
+            target.limit(dataChunkSize);
+            while (target.hasRemaining()) {
+                if (channel.read(target, position + target.position()) < 0) {
+                    throw new EOFException("Experiment file ends within state " + index);
+                }
+            }
+        }
+        target.flip();
     }
 
-    private long getStatePosition(final int index) {
+    /**
+     * @return Offset of the state in the file, computed in long arithmetic as files exceed 2 GB.
+     */
+    private long getStatePosition(final long index) {
         return SETTINGS_SIZE + index * dataChunkSize;
     }
 }
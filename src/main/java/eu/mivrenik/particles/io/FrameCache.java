@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of recently used states of experiment file with read-ahead.
+ *
+ * States are kept as stored bytes, the least recently used are dropped once
+ * the cache exceeds its size. After every request a background thread loads
+ * the following states in the direction of playback, or the states on both
+ * sides when the request jumped, so the next request is usually a hit.
+ *
+ * Views returned by the cache hold a copy of the state, so they stay valid
+ * when the state is dropped from the cache.
+ */
+public final class FrameCache implements Closeable {
+    private static final int DEFAULT_READ_AHEAD = 16;
+    private static final long PREFETCHER_KEEP_ALIVE = 5; // seconds
+
+    private final ExperimentLoader loader;
+    private final int frameSize;
+    private final int capacity; // in states
+    private final int readAhead;
+    private final ExecutorService prefetcher;
+    private final Object lock = new Object();
+    private final LinkedHashMap<Long, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true); // guarded by lock
+    private int allocated; // buffers created for entries, guarded by lock
+    private long last = -1; // last requested state, guarded by lock
+    private int direction; // 1 or -1 while states are played in sequence, 0 after a jump, guarded by lock
+    private boolean prefetching; // guarded by lock
+    private boolean closed; // guarded by lock
+    private long hits; // guarded by lock
+    private long misses; // guarded by lock
+
+    /**
+     * @param maxBytes
+     *            Size of the cached states, at least one state is cached.
+     */
+    public FrameCache(final ExperimentLoader loader, final long maxBytes) {
+        this(loader, maxBytes, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * @param readAhead
+     *            Number of states to load ahead of the last request, limited
+     *            to half of the cache.
+     */
+    public FrameCache(final ExperimentLoader loader, final long maxBytes, final int readAhead) {
+        this.loader = loader;
+        frameSize = loader.getDataChunkSize();
+        capacity = (int) Math.max(1, Math.min(maxBytes / frameSize, Integer.MAX_VALUE));
+        this.readAhead = Math.max(0, Math.min(readAhead, capacity / 2));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, PREFETCHER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> {
+                    Thread thread = new Thread(task, "frame-prefetcher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // the thread is not kept while playback is paused
+        executor.allowCoreThreadTimeOut(true);
+        prefetcher = executor;
+    }
+
+    /**
+     * @return View of the state.
+     */
+    public FrameView getView(final long index) throws IOException {
+        return getView(index, new FrameView(loader.getExperimentSettings().getParticleCount()));
+    }
+
+    /**
+     * Move a view to another state, see {@link ExperimentLoader#getView(long, FrameView)}.
+     */
+    public FrameView getView(final long index, final FrameView view) throws IOException {
+        if (index < 0 || index >= loader.getStateCount()) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (view.size() != loader.getExperimentSettings().getParticleCount()) {
+            throw new IllegalArgumentException("View of " + view.size() + " particles does not fit the experiment");
+        }
+
+        ByteBuffer copy = view.getOwnBuffer(frameSize);
+
+        synchronized (lock) {
+            direction = index == last + 1 ? 1 : (index == last - 1 ? -1 : 0);
+            last = index;
+
+            ByteBuffer cached = entries.get(index);
+            if (cached != null) {
+                hits++;
+                copy.clear();
+                copy.put(cached.duplicate());
+                copy.flip();
+            } else {
+                misses++;
+            }
+            schedulePrefetch();
+
+            if (cached != null) {
+                view.wrap(copy, 0);
+                return view;
+            }
+        }
+
+        ByteBuffer buffer = takeBuffer();
+        try {
+            loader.readState(index, buffer);
+        } catch (IOException | RuntimeException e) {
+            synchronized (lock) {
+                allocated--;
+            }
+            throw e;
+        }
+        synchronized (lock) {
+            copy.clear();
+            copy.put(buffer.duplicate());
+            copy.flip();
+            put(index, buffer);
+        }
+        view.wrap(copy, 0);
+
+        return view;
+    }
+
+    /**
+     * @return Number of requests served from the cache.
+     */
+    public long getHits() {
+        synchronized (lock) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return Number of requests which had to read the state.
+     */
+    public long getMisses() {
+        synchronized (lock) {
+            return misses;
+        }
+    }
+
+    boolean contains(final long index) {
+        synchronized (lock) {
+            return entries.containsKey(index);
+        }
+    }
+
+    /**
+     * Stop loading states ahead. The loader is not closed.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            entries.clear();
+        }
+        // not interrupted, an interrupt would close the file channel of the loader
+        prefetcher.shutdown();
+    }
+
+    private void schedulePrefetch() {
+        if (!prefetching && !closed && readAhead > 0) {
+            prefetching = true;
+            prefetcher.execute(this::prefetch);
+        }
+    }
+
+    private void prefetch() {
+        while (true) {
+            long index;
+
+            synchronized (lock) {
+                index = closed ? -1 : nextPrefetch();
+                if (index < 0) {
+                    prefetching = false;
+                    return;
+                }
+            }
+
+            ByteBuffer buffer = takeBuffer();
+            try {
+                loader.readState(index, buffer);
+            } catch (IOException | RuntimeException e) {
+                // reading ahead is best effort, the request for the state reports the error
+                synchronized (lock) {
+                    allocated--;
+                    prefetching = false;
+                }
+                return;
+            }
+            synchronized (lock) {
+                put(index, buffer);
+            }
+        }
+    }
+
+    /**
+     * @return State within the read-ahead window of the last request which is not cached yet, or -1.
+     */
+    private long nextPrefetch() {
+        for (int distance = 1; distance <= readAhead; distance++) {
+            long candidate;
+
+            if (direction != 0) {
+                candidate = last + distance * direction;
+            } else {
+                // alternate between both sides of the slider position
+                candidate = (distance & 1) == 1 ? last + (distance + 1) / 2 : last - distance / 2;
+            }
+
+            if (candidate >= 0 && candidate < loader.getStateCount() && !entries.containsKey(candidate)) {
+                return candidate;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return Buffer for a state to be loaded, taken from the least recently used entry once the cache is full.
+     */
+    private ByteBuffer takeBuffer() {
+        synchronized (lock) {
+            if (allocated >= capacity && !entries.isEmpty()) {
+                Iterator<Map.Entry<Long, ByteBuffer>> eldest = entries.entrySet().iterator();
+                ByteBuffer buffer = eldest.next().getValue();
+
+                eldest.remove();
+                return buffer;
+            }
+            allocated++;
+        }
+
+        return ByteBuffer.allocate(frameSize);
+    }
+
+    private void put(final long index, final ByteBuffer buffer) {
+        if (closed || entries.containsKey(index)) {
+            // loaded by both the request and the prefetcher
+            allocated--;
+            return;
+        }
+        entries.put(index, buffer);
+    }
+}
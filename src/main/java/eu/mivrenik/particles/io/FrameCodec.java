@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reversible transform of a chunk of consecutive states which makes them compressible.
+ *
+ * Raw states hardly compress, particle fields are full precision doubles
+ * interleaved with ids. The transform stores the chunk by columns (times,
+ * ids and then every particle field) and replaces times and particle fields
+ * by the zigzag encoded difference of their bits to the previous state,
+ * matching particles by id as their order changes from state to state.
+ * Columns are then split into byte planes, most significant bytes first, so
+ * the mostly zero high bytes of the differences form long runs.
+ *
+ * The transform keeps the size of the chunk.
+ */
+final class FrameCodec {
+    private static final int PARTICLE_SIZE = Integer.BYTES + 4 * Double.BYTES;
+    private static final int FIELDS = 4;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * @param raw
+     *            States as stored in experiment file, from position 0.
+     * @param out
+     *            Array to put the transformed chunk to, at least as long as the states.
+     */
+    static void encode(final ByteBuffer raw, final int frames, final int particles, final byte[] out) {
+        int frameSize = Long.BYTES + particles * PARTICLE_SIZE;
+        int count = frames * particles;
+        long[] column = new long[Math.max(frames, count)];
+        int[] ids = new int[count];
+        int pos = 0;
+
+        for (int frame = 0; frame < frames; frame++) {
+            long previous = frame > 0 ? raw.getLong((frame - 1) * frameSize) : 0;
+            column[frame] = zigzag(raw.getLong(frame * frameSize) - previous);
+        }
+        pos = putPlanes(out, pos, column, frames, Long.BYTES);
+
+        for (int i = 0; i < count; i++) {
+            ids[i] = raw.getInt(getPosition(i, particles, frameSize));
+            column[i] = ids[i];
+        }
+        pos = putPlanes(out, pos, column, count, Integer.BYTES);
+
+        int[] references = getReferences(ids, frames, particles);
+        for (int field = 0; field < FIELDS; field++) {
+            int offset = Integer.BYTES + field * Double.BYTES;
+
+            for (int i = 0; i < count; i++) {
+                long bits = raw.getLong(getPosition(i, particles, frameSize) + offset);
+                long previous = references[i] >= 0
+                        ? raw.getLong(getPosition(references[i], particles, frameSize) + offset) : 0;
+                column[i] = zigzag(bits - previous);
+            }
+            pos = putPlanes(out, pos, column, count, Long.BYTES);
+        }
+    }
+
+    /**
+     * Restore states transformed by {@link #encode(ByteBuffer, int, int, byte[])}.
+     *
+     * @param raw
+     *            Buffer to put the states to, from position 0.
+     */
+    static void decode(final byte[] in, final int frames, final int particles, final ByteBuffer raw) {
+        int frameSize = Long.BYTES + particles * PARTICLE_SIZE;
+        int count = frames * particles;
+        long[] column = new long[Math.max(frames, count)];
+        int[] ids = new int[count];
+        int pos = 0;
+
+        pos = getPlanes(in, pos, column, frames, Long.BYTES);
+        for (int frame = 0; frame < frames; frame++) {
+            long previous = frame > 0 ? raw.getLong((frame - 1) * frameSize) : 0;
+            raw.putLong(frame * frameSize, unzigzag(column[frame]) + previous);
+        }
+
+        pos = getPlanes(in, pos, column, count, Integer.BYTES);
+        for (int i = 0; i < count; i++) {
+            ids[i] = (int) column[i];
+            raw.putInt(getPosition(i, particles, frameSize), ids[i]);
+        }
+
+        // references always point to the previous state, which is restored first
+        int[] references = getReferences(ids, frames, particles);
+        for (int field = 0; field < FIELDS; field++) {
+            int offset = Integer.BYTES + field * Double.BYTES;
+
+            pos = getPlanes(in, pos, column, count, Long.BYTES);
+            for (int i = 0; i < count; i++) {
+                long previous = references[i] >= 0
+                        ? raw.getLong(getPosition(references[i], particles, frameSize) + offset) : 0;
+                raw.putLong(getPosition(i, particles, frameSize) + offset, unzigzag(column[i]) + previous);
+            }
+        }
+    }
+
+    /**
+     * @return For every particle of the chunk the index of the particle with
+     *         the same id in the previous state, or -1 for the first state
+     *         and ids missing from the previous state.
+     */
+    private static int[] getReferences(final int[] ids, final int frames, final int particles) {
+        int[] references = new int[ids.length];
+        // simulated ids are below twice the particle count, larger ones are not matched
+        int[] indexOfId = new int[2 * particles + 1];
+
+        Arrays.fill(references, 0, Math.min(particles, ids.length), -1);
+        Arrays.fill(indexOfId, -1);
+        for (int frame = 1; frame < frames; frame++) {
+            int first = frame * particles;
+            int previous = first - particles;
+
+            for (int i = previous; i < first; i++) {
+                if (ids[i] >= 0 && ids[i] < indexOfId.length) {
+                    indexOfId[ids[i]] = i;
+                }
+            }
+            for (int i = first; i < first + particles; i++) {
+                references[i] = ids[i] >= 0 && ids[i] < indexOfId.length ? indexOfId[ids[i]] : -1;
+            }
+            // clear the matches so a missing id is not matched with an older state
+            for (int i = previous; i < first; i++) {
+                if (ids[i] >= 0 && ids[i] < indexOfId.length) {
+                    indexOfId[ids[i]] = -1;
+                }
+            }
+        }
+
+        return references;
+    }
+
+    private static int getPosition(final int particle, final int particles, final int frameSize) {
+        return particle / particles * frameSize + Long.BYTES + particle % particles * PARTICLE_SIZE;
+    }
+
+    private static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int putPlanes(final byte[] out, final int position, final long[] values, final int count,
+                                 final int width) {
+        int pos = position;
+
+        for (int plane = width - 1; plane >= 0; plane--) {
+            int shift = 8 * plane;
+            for (int i = 0; i < count; i++) {
+                out[pos++] = (byte) (values[i] >>> shift);
+            }
+        }
+
+        return pos;
+    }
+
+    private static int getPlanes(final byte[] in, final int position, final long[] values, final int count,
+                                 final int width) {
+        int pos = position;
+
+        Arrays.fill(values, 0, count, 0);
+        for (int plane = 0; plane < width; plane++) {
+            for (int i = 0; i < count; i++) {
+                values[i] = values[i] << 8 | (in[pos++] & 0xff);
+            }
+        }
+
+        return pos;
+    }
+}
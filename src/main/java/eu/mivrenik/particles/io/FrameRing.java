@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Bounded ring of preallocated direct frame buffers drained to a {@link Sink} by a writer thread.
+ *
+ * The simulation thread encodes a state into the slot returned by
+ * {@link #acquire()}, hands it over with {@link #publish()} and continues
+ * stepping while the writer thread passes filled slots to the sink in order,
+ * every slot filled meanwhile at once. When every slot is filled the
+ * simulation waits for the writer, so at most {@code slots} frames are kept
+ * in memory. There must be a single producer.
+ *
+ * A write error stops the writer, it is rethrown to the producer by the next
+ * {@link #acquire()}, {@link #drain()} or {@link #close()}.
+ */
+final class FrameRing implements Closeable {
+    private final ByteBuffer[] slots;
+    private final ByteBuffer[] batch;
+    private final Sink sink;
+    private final Thread writer;
+    private final Object lock = new Object();
+    private int head; // next slot to fill, guarded by lock
+    private int filled; // slots published and not yet written, guarded by lock
+    private boolean closed; // guarded by lock
+    private Throwable failure; // guarded by lock
+
+    /**
+     * Consumer of frames run by the writer thread.
+     */
+    interface Sink {
+        /**
+         * @param frames
+         *            Buffers of the frames in order, the first {@code count} of them are filled.
+         */
+        void write(ByteBuffer[] frames, int count) throws IOException;
+    }
+
+    /**
+     * @param out
+     *            Channel frames are written to as they are. It is not closed by the ring.
+     */
+    FrameRing(final GatheringByteChannel out, final int slots, final int frameSize) {
+        this(getChannelSink(out), slots, frameSize);
+    }
+
+    /**
+     * @param sink
+     *            Consumer of the frames.
+     * @param slots
+     *            Number of frames which can wait for the writer.
+     * @param frameSize
+     *            Capacity of every slot in bytes.
+     */
+    FrameRing(final Sink sink, final int slots, final int frameSize) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("Frame ring needs at least one slot");
+        }
+
+        this.sink = sink;
+        this.slots = new ByteBuffer[slots];
+        this.batch = new ByteBuffer[slots];
+        for (int i = 0; i < slots; i++) {
+            this.slots[i] = ByteBuffer.allocateDirect(frameSize);
+        }
+
+        writer = new Thread(this::writeFrames, "frame-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Wait for a free slot.
+     *
+     * @return Empty buffer to encode the next frame into.
+     */
+    ByteBuffer acquire() throws IOException {
+        synchronized (lock) {
+            while (filled == slots.length && failure == null) {
+                await();
+            }
+            checkFailure();
+
+            ByteBuffer slot = slots[head];
+            slot.clear();
+            return slot;
+        }
+    }
+
+    /**
+     * Pass the buffer returned by the last {@link #acquire()} to the writer.
+     */
+    void publish() {
+        synchronized (lock) {
+            slots[head].flip();
+            head = (head + 1) % slots.length;
+            filled++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until every published frame is written to the channel.
+     */
+    void drain() throws IOException {
+        synchronized (lock) {
+            while (filled > 0 && failure == null) {
+                await();
+            }
+            checkFailure();
+        }
+    }
+
+    /**
+     * Write the remaining frames and stop the writer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing frames");
+        }
+
+        synchronized (lock) {
+            checkFailure();
+        }
+    }
+
+    private void writeFrames() {
+        while (true) {
+            int count;
+
+            synchronized (lock) {
+                while (filled == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        failure = new InterruptedIOException("Frame writer interrupted");
+                        lock.notifyAll();
+                        return;
+                    }
+                }
+                if (filled == 0) {
+                    return;
+                }
+
+                count = filled;
+                int tail = head - filled + slots.length;
+                for (int i = 0; i < count; i++) {
+                    batch[i] = slots[(tail + i) % slots.length];
+                }
+            }
+
+            try {
+                sink.write(batch, count);
+            } catch (Throwable e) {
+                // errors as well, the stepping thread would wait for the dead writer forever otherwise
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+
+            synchronized (lock) {
+                filled -= count;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return Sink writing frames to the channel, every frame filled meanwhile with a single gathering write.
+     */
+    static Sink getChannelSink(final GatheringByteChannel out) {
+        return (frames, count) -> {
+            ByteBuffer last = frames[count - 1];
+            int first = 0;
+
+            while (last.hasRemaining()) {
+                out.write(frames, first, count - first);
+                while (first < count - 1 && !frames[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        };
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the frame writer");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Could not write frames", failure);
+        }
+    }
+}
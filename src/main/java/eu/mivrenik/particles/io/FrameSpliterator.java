@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over a range of states of experiment file.
+ *
+ * Every spliterator moves a single {@link FrameView} from state to state,
+ * a view passed to an action is only valid until the action returns.
+ * Splitting halves the range, so a parallel stream processes contiguous
+ * ranges of the file on different threads.
+ */
+final class FrameSpliterator implements Spliterator<FrameView> {
+    private final ExperimentLoader loader;
+    private final long end;
+    private long next;
+    private FrameView view; // created on first use, so a split costs no buffer
+
+    FrameSpliterator(final ExperimentLoader loader, final long first, final long end) {
+        this.loader = loader;
+        this.next = first;
+        this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super FrameView> action) {
+        if (next >= end) {
+            return false;
+        }
+
+        action.accept(read(next++));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(final Consumer<? super FrameView> action) {
+        while (next < end) {
+            action.accept(read(next++));
+        }
+    }
+
+    @Override
+    public Spliterator<FrameView> trySplit() {
+        long middle = next + (end - next) / 2;
+
+        if (middle == next) {
+            return null;
+        }
+
+        Spliterator<FrameView> prefix = new FrameSpliterator(loader, next, middle);
+        next = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - next;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL;
+    }
+
+    private FrameView read(final long index) {
+        try {
+            view = view == null ? loader.getView(index) : loader.getView(index, view);
+            return view;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import eu.mivrenik.particles.model.ExperimentSettings;
+import eu.mivrenik.particles.model.ExperimentState;
+import eu.mivrenik.particles.model.Particle;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only view of a state stored in experiment file.
+ *
+ * Particle fields are decoded from the stored bytes when they are accessed,
+ * {@link Particle} objects are only created by {@link #getParticle(int)} and
+ * {@link #toState(ExperimentSettings)}. A view can be passed to
+ * {@link ExperimentLoader#getView(long, FrameView)} again to move it to
+ * another state, so going through states allocates nothing. The view is only
+ * valid until it is moved, and is not thread safe.
+ */
+public final class FrameView {
+    private static final int PARTICLE_SIZE = Integer.BYTES + 4 * Double.BYTES;
+
+    private final int size;
+    private ByteBuffer buffer;
+    private int offset;
+    private ByteBuffer ownBuffer; // states read with file calls are copied into it
+
+    FrameView(final int size) {
+        this.size = size;
+    }
+
+    /**
+     * Point the view at a state stored in the buffer from the given position.
+     */
+    void wrap(final ByteBuffer source, final int position) {
+        buffer = source;
+        offset = position;
+    }
+
+    /**
+     * @return Heap buffer of the view which can hold a state of the given size.
+     */
+    ByteBuffer getOwnBuffer(final int capacity) {
+        if (ownBuffer == null || ownBuffer.capacity() < capacity) {
+            ownBuffer = ByteBuffer.allocate(capacity);
+        }
+
+        return ownBuffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTime() {
+        return buffer.getLong(offset);
+    }
+
+    public int getId(final int index) {
+        return buffer.getInt(getPosition(index));
+    }
+
+    public double getPosX(final int index) {
+        return buffer.getDouble(getPosition(index) + 4);
+    }
+
+    public double getPosY(final int index) {
+        return buffer.getDouble(getPosition(index) + 12);
+    }
+
+    public double getVelocityX(final int index) {
+        return buffer.getDouble(getPosition(index) + 20);
+    }
+
+    public double getVelocityY(final int index) {
+        return buffer.getDouble(getPosition(index) + 28);
+    }
+
+    public double getSpeed(final int index) {
+        double velocityX = getVelocityX(index);
+        double velocityY = getVelocityY(index);
+
+        return Math.sqrt(velocityX * velocityX + velocityY * velocityY);
+    }
+
+    public Particle getParticle(final int index) {
+        return Particle.newBuilder()
+                .id(getId(index))
+                .position(getPosX(index), getPosY(index))
+                .velocity(getVelocityX(index), getVelocityY(index))
+                .build();
+    }
+
+    public Particle[] toParticles() {
+        Particle[] particles = new Particle[size];
+
+        for (int i = 0; i < particles.length; i++) {
+            particles[i] = getParticle(i);
+        }
+
+        return particles;
+    }
+
+    public ExperimentState toState(final ExperimentSettings settings) {
+        return ExperimentState.newBuilder()
+                .particles(toParticles())
+                .settings(settings)
+                .time(getTime())
+                .build();
+    }
+
+    private int getPosition(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Particle " + index + " of " + size);
+        }
+
+        return offset + Long.BYTES + index * PARTICLE_SIZE;
+    }
+}
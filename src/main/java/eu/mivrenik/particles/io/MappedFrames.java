@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Frames of an experiment file mapped into memory.
+ *
+ * A single mapping can not exceed 2 GB, so the file is mapped in segments
+ * holding a whole number of frames each. Locating a frame is an index and an
+ * offset computation, the bytes are read by the OS on first access.
+ */
+final class MappedFrames {
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private final ByteBuffer[] segments;
+    private final int frameSize;
+    private final long framesPerSegment;
+
+    MappedFrames(final FileChannel channel, final long offset, final int frameSize, final long frameCount)
+            throws IOException {
+        this(channel, offset, frameSize, frameCount, MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param offset
+     *            Position of the first frame in the file.
+     * @param maxSegmentSize
+     *            Size limit of a single mapping, at least a frame.
+     */
+    MappedFrames(final FileChannel channel, final long offset, final int frameSize, final long frameCount,
+                 final long maxSegmentSize) throws IOException {
+        if (frameSize > maxSegmentSize) {
+            throw new IOException("Frames of " + frameSize + " bytes are too large to be mapped");
+        }
+
+        this.frameSize = frameSize;
+        framesPerSegment = maxSegmentSize / frameSize;
+
+        int segmentCount = (int) ((frameCount + framesPerSegment - 1) / framesPerSegment);
+        segments = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long first = i * framesPerSegment;
+            long size = Math.min(framesPerSegment, frameCount - first) * frameSize;
+
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + first * frameSize, size);
+        }
+    }
+
+    /**
+     * @return Mapped segment holding the frame, read it with absolute gets only,
+     *         so the buffer can be shared between threads.
+     */
+    ByteBuffer getSegment(final long frame) {
+        return segments[(int) (frame / framesPerSegment)];
+    }
+
+    /**
+     * @return Position of the frame within {@link #getSegment(long)}.
+     */
+    int getOffset(final long frame) {
+        return (int) (frame % framesPerSegment) * frameSize;
+    }
+}
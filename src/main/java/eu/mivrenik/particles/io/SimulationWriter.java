@@ -1,19 +1,32 @@
 package eu.mivrenik.particles.io;
 
 import eu.mivrenik.particles.model.ExperimentSettings;
-import eu.mivrenik.particles.model.ExperimentState;
-import eu.mivrenik.particles.model.Particle;
+import eu.mivrenik.particles.model.ParticleStore;
 import eu.mivrenik.particles.model.Simulator;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.TimeUnit;
 
 public class SimulationWriter {
+    public static final int DEFAULT_BUFFERED_FRAMES = 4;
+
     private Simulator simulator;
     private File outputFile;
+    private long stepCount;
+    private long resumedStepCount;
+    private long checkpointInterval;
+    private int bufferedFrames = DEFAULT_BUFFERED_FRAMES;
+    private boolean compressed;
 
     public SimulationWriter(final Simulator simulator, final File outputFile) {
         this.simulator = simulator;
@@ -24,59 +37,295 @@ public class SimulationWriter {
         return simulator;
     }
 
+    /**
+     * @return Number of simulation steps of the experiment, including the
+     *         steps before the checkpoint when it was resumed.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * @return Number of simulation steps calculated before the checkpoint
+     *         {@link #resumeSimulation()} continued from, zero for
+     *         {@link #saveSimulation()}.
+     */
+    public long getResumedStepCount() {
+        return resumedStepCount;
+    }
+
+    /**
+     * @param milliseconds
+     *            Save a checkpoint of the simulation after the step which
+     *            ends this long after the previous checkpoint, so it can be
+     *            continued with {@link #resumeSimulation()}. Zero (the
+     *            default) saves no checkpoints.
+     */
+    public void setCheckpointInterval(final long milliseconds) {
+        checkpointInterval = milliseconds;
+    }
+
+    /**
+     * @param frames
+     *            Number of states which may wait to be written to the file
+     *            while the simulation continues, 4 by default. Each of them
+     *            takes the size of a state in the file in memory.
+     */
+    public void setBufferedFrames(final int frames) {
+        if (frames < 1) {
+            throw new IllegalArgumentException("At least one frame has to be buffered");
+        }
+        bufferedFrames = frames;
+    }
+
+    /**
+     * @param compressed
+     *            Write the compressed version 2 format, refer to
+     *            README#Technical Information. Version 1 is written by default.
+     */
+    public void setCompressed(final boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * @return File checkpoints of the simulation are saved to, removed once the simulation is complete.
+     */
+    public File getCheckpointFile() {
+        return new File(outputFile.getPath() + ".checkpoint");
+    }
+
+    /**
+     * Simulate the experiment and write its states to the output file. An
+     * existing file is replaced rather than truncated, so files linked to
+     * it, e.g. by {@link eu.mivrenik.particles.batch.ResultCache}, are left
+     * intact.
+     *
+     * @throws IOException
+     *             If the file could not be written or the thread was
+     *             interrupted, the file is incomplete then.
+     * @throws Exception
+     *             If the particles could not be placed, see
+     *             {@link Simulator#initialDistribution()}.
+     */
     public void saveSimulation() throws Exception {
-        ExperimentState currState = simulator.initialDistribution();
         ExperimentSettings experimentSettings = simulator.getSettings();
+        // two stores are stepped into each other, so no objects are created per step
+        ParticleStore currState = ParticleStore.of(simulator.initialDistribution());
+
+        stepCount = 0;
+        resumedStepCount = 0;
+        Files.deleteIfExists(outputFile.toPath());
+        try (FileChannel file = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(header);
+            ChunkedFrameWriter chunks = null;
+
+            try {
+                if (compressed) {
+                    int framesPerChunk = getFramesPerChunk(currState.size());
+
+                    out.writeInt(ChunkedFrames.MAGIC);
+                    out.writeInt(ChunkedFrames.VERSION);
+                    writeSettings(out, experimentSettings);
+                    out.writeInt(framesPerChunk);
+                    chunks = new ChunkedFrameWriter(file, currState.size(), framesPerChunk,
+                            new long[] {ChunkedFrames.HEADER_SIZE});
+                } else {
+                    writeSettings(out, experimentSettings);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(header.toByteArray());
+                while (buffer.hasRemaining()) {
+                    file.write(buffer);
+                }
+
+                // every step suggests the length of the next one
+                writeStates(file, chunks, currState, 0, simulator.getTimeStep(currState));
+            } finally {
+                if (chunks != null) {
+                    chunks.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Continue the simulation from its last checkpoint. States written after
+     * the checkpoint are discarded and the simulation appends states to the
+     * output file from there on. The file is the same as written by an
+     * uninterrupted {@link #saveSimulation()} with the default step engine,
+     * see {@link Simulator#copyForResume(ParticleStore, ParticleStore)}.
+     *
+     * @throws IOException
+     *             If there is no checkpoint, it belongs to another experiment
+     *             or version of the simulator or the file was written in the
+     *             other format, see {@link #setCompressed(boolean)}, or
+     *             as in {@link #saveSimulation()}.
+     */
+    public void resumeSimulation() throws IOException {
+        Checkpoint checkpoint = Checkpoint.read(getCheckpointFile(), simulator.getSettings());
+        ChunkedFrameWriter chunks = null;
+        int framesPerChunk = 0;
+        long[] chunkOffsets = null;
+
+        try (RandomAccessFile output = new RandomAccessFile(outputFile, "rw")) {
+            if (output.length() < checkpoint.getOutputLength()) {
+                throw new IOException("Experiment file " + outputFile + " is shorter than at the checkpoint");
+            }
+            output.setLength(checkpoint.getOutputLength());
+
+            if ((output.readInt() == ChunkedFrames.MAGIC) != compressed) {
+                throw new IOException("Experiment file " + outputFile + " was written in the other format");
+            }
+            if (compressed) {
+                // checkpoints are only saved at the end of a chunk
+                output.seek(ChunkedFrames.HEADER_SIZE - Integer.BYTES);
+                framesPerChunk = output.readInt();
+                chunkOffsets = ChunkedFrames.scanChunks(output.getChannel(), ChunkedFrames.HEADER_SIZE,
+                        checkpoint.getOutputLength());
+            }
+        }
+
+        stepCount = checkpoint.getStepCount();
+        resumedStepCount = stepCount;
+        try (FileChannel file = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            if (compressed) {
+                chunks = new ChunkedFrameWriter(file, checkpoint.getState().size(), framesPerChunk, chunkOffsets);
+            }
+            writeStates(file, chunks, checkpoint.getState(), checkpoint.getSnapshot(), checkpoint.getDeltaTime());
+        } finally {
+            if (chunks != null) {
+                chunks.close();
+            }
+        }
+    }
+
+    /**
+     * Step the simulation until the end of experiment and write a state every
+     * frame interval. States are encoded into direct buffers of a
+     * {@link FrameRing} and written by its thread while the simulation
+     * continues. The checkpoint file is removed once every state is written.
+     *
+     * @param chunks
+     *            Writer of compressed states, or null to write them as they are.
+     * @param currSnap
+     *            Index of the next state to write.
+     * @param deltaStep
+     *            Length of the next step.
+     */
+    private void writeStates(final FileChannel file, final ChunkedFrameWriter chunks, final ParticleStore state,
+                             final long currSnap, final long deltaStep) throws IOException {
+        ExperimentSettings experimentSettings = simulator.getSettings();
+        ParticleStore currState = state;
+        ParticleStore nextState = new ParticleStore(currState.size());
+        ParticleStore checkpointState = null;
 
         long duration = TimeUnit.MINUTES.toMicros(experimentSettings.getDuration());
         long deltaTime = Math.floorDiv(1000000, experimentSettings.getFps());
         long statesNum = TimeUnit.MINUTES.toSeconds(experimentSettings.getDuration()) * experimentSettings.getFps();
-        long currSnap = 0;
-
-        try {
-            DataOutputStream out = new DataOutputStream(new FileOutputStream(outputFile));
-
-            out.writeInt(experimentSettings.getParticleCountLeft());
-            out.writeInt(experimentSettings.getParticleCountRight());
-            out.writeFloat(experimentSettings.getInitialSpeed());
-            out.writeFloat(experimentSettings.getSpeedLoss());
-            out.writeFloat(experimentSettings.getSpeedDeltaTop());
-            out.writeFloat(experimentSettings.getSpeedDeltaSides());
-            out.writeFloat(experimentSettings.getSpeedDeltaBottom());
-            out.writeFloat(experimentSettings.getG());
-            out.writeFloat(experimentSettings.getBoxWidth());
-            out.writeFloat(experimentSettings.getBoxHeight());
-            out.writeFloat(experimentSettings.getBarrierPosX());
-            out.writeFloat(experimentSettings.getBarrierWidth());
-            out.writeFloat(experimentSettings.getHolePosY());
-            out.writeFloat(experimentSettings.getHoleHeight());
-            out.writeFloat(experimentSettings.getParticleRadius());
-            out.writeInt(experimentSettings.getFps());
-            out.writeInt(experimentSettings.getDuration());
-            out.writeInt(experimentSettings.getSeed());
+        long snapshot = currSnap;
+        long step = deltaStep;
+        long nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
 
+        FrameRing.Sink sink = chunks != null ? chunks : FrameRing.getChannelSink(file);
+        long framesPerCheckpoint = chunks != null ? chunks.getFramesPerChunk() : 1;
 
+        try (FrameRing ring = new FrameRing(sink, bufferedFrames, getStateSize(currState.size()))) {
             while (currState.getTime() < duration) {
-                if (currState.getTime() >= currSnap * deltaTime && currState.getTime() < (currSnap + 1) * deltaTime
-                        && currSnap < statesNum) {
-                    out.writeLong(currState.getTime());
-                    for (Particle particle : currState.getParticles()) {
-                        out.writeInt(particle.getId());
-                        out.writeDouble(particle.getPosX());
-                        out.writeDouble(particle.getPosY());
-                        out.writeDouble(particle.getVelocityX());
-                        out.writeDouble(particle.getVelocityY());
-                    }
-                    currSnap++;
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Simulation interrupted at " + currState.getTime() + " us");
                 }
+                if (currState.getTime() >= snapshot * deltaTime && currState.getTime() < (snapshot + 1) * deltaTime
+                        && snapshot < statesNum) {
+                    writeState(ring.acquire(), currState);
+                    ring.publish();
+                    snapshot++;
+                }
+
+                step = simulator.nextTimeStep(currState, nextState, step);
+                stepCount++;
+
+                ParticleStore swap = currState;
+                currState = nextState;
+                nextState = swap;
 
-                currState = simulator.nextTimeStep(currState, Simulator.calculateTimeStep(currState));
+                if (checkpointInterval > 0 && System.currentTimeMillis() >= nextCheckpoint
+                        && currState.getTime() < duration && snapshot % framesPerCheckpoint == 0) {
+                    if (checkpointState == null) {
+                        checkpointState = new ParticleStore(currState.size());
+                    }
+                    // the checkpoint refers to the file length, so every state before it has to be written,
+                    // compressed states are checkpointed when a chunk was completed by the last state
+                    ring.drain();
+                    file.force(true);
+                    simulator.copyForResume(currState, checkpointState);
+                    new Checkpoint(experimentSettings, file.position(), snapshot, stepCount, step,
+                            checkpointState).write(getCheckpointFile());
+                    nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
+                }
             }
+        }
 
-            out.flush();
-            out.close();
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
+        if (chunks != null) {
+            chunks.finish();
+        }
+        if (snapshot != statesNum) {
+            throw new IOException("Only " + snapshot + " of " + statesNum + " states were written to " + outputFile);
         }
+        Files.deleteIfExists(getCheckpointFile().toPath());
+    }
+
+    /**
+     * @return Number of states in a chunk of compressed experiment file of the given number of particles.
+     */
+    public static int getFramesPerChunk(final int particleCount) {
+        return ChunkedFrames.getFramesPerChunk(getStateSize(particleCount));
+    }
+
+    /**
+     * @return Size of a state of the given number of particles in experiment file.
+     */
+    static int getStateSize(final int particleCount) {
+        return Long.BYTES + particleCount * (Integer.BYTES + 4 * Double.BYTES);
+    }
+
+    /**
+     * Encode a state the way it is stored in experiment file, refer to
+     * README#Technical Information for more detail.
+     */
+    static void writeState(final ByteBuffer out, final ParticleStore state) {
+        out.putLong(state.getTime());
+        for (int i = 0; i < state.size(); i++) {
+            out.putInt(state.getId(i));
+            out.putDouble(state.getPosX(i));
+            out.putDouble(state.getPosY(i));
+            out.putDouble(state.getVelocityX(i));
+            out.putDouble(state.getVelocityY(i));
+        }
+    }
+
+    /**
+     * Write settings as the header of experiment file, refer to README#Technical Information for more detail.
+     */
+    static void writeSettings(final DataOutput out, final ExperimentSettings experimentSettings) throws IOException {
+        out.writeInt(experimentSettings.getParticleCountLeft());
+        out.writeInt(experimentSettings.getParticleCountRight());
+        out.writeFloat(experimentSettings.getInitialSpeed());
+        out.writeFloat(experimentSettings.getSpeedLoss());
+        out.writeFloat(experimentSettings.getSpeedDeltaTop());
+        out.writeFloat(experimentSettings.getSpeedDeltaSides());
+        out.writeFloat(experimentSettings.getSpeedDeltaBottom());
+        out.writeFloat(experimentSettings.getG());
+        out.writeFloat(experimentSettings.getBoxWidth());
+        out.writeFloat(experimentSettings.getBoxHeight());
+        out.writeFloat(experimentSettings.getBarrierPosX());
+        out.writeFloat(experimentSettings.getBarrierWidth());
+        out.writeFloat(experimentSettings.getHolePosY());
+        out.writeFloat(experimentSettings.getHoleHeight());
+        out.writeFloat(experimentSettings.getParticleRadius());
+        out.writeInt(experimentSettings.getFps());
+        out.writeInt(experimentSettings.getDuration());
+        out.writeInt(experimentSettings.getSeed());
     }
 }
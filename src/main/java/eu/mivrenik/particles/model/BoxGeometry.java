@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.model;
+
+/**
+ * Walls of the box, the barrier and its hole as seen by a particle centre.
+ *
+ * Finds the moment a particle moving along its parabola first hits a wall
+ * and bounces it off with the same speed deltas as
+ * {@link Simulator#nextTimeStep(ParticleStore, ParticleStore, long)}. The
+ * barrier is a pair of vertical faces with the hole between them. The
+ * corners of the hole are handled by edges: a particle whose centre
+ * crosses the hole edge while it still overlaps the barrier face is bounced
+ * off that face.
+ */
+final class BoxGeometry {
+    static final int BOX_LEFT = 0;
+    static final int BOX_RIGHT = 1;
+    static final int BOX_TOP = 2;
+    static final int BOX_BOTTOM = 3;
+    static final int BARRIER_LEFT = 4;
+    static final int BARRIER_RIGHT = 5;
+    static final int HOLE_TOP = 6;
+    static final int HOLE_BOTTOM = 7;
+    static final int EDGE_TOP = 8;
+    static final int EDGE_BOTTOM = 9;
+    static final int WALL_COUNT = 10;
+
+    private static final double INFINITY = Double.POSITIVE_INFINITY;
+    private static final int MAX_BOUNCES = 16;
+
+    private final ExperimentSettings settings;
+    private final double particleRadius;
+    private final double g;
+    private final double boxWidth;
+    private final double boxHeight;
+    private final double holeLeftSideBound;
+    private final double holeRightSideBound;
+    private final double holeTopBound;
+    private final double holeBottomBound;
+
+    BoxGeometry(final ExperimentSettings settings) {
+        this.settings = settings;
+        particleRadius = settings.getParticleRadius();
+        g = settings.getG();
+        boxWidth = settings.getBoxWidth();
+        boxHeight = settings.getBoxHeight();
+        holeLeftSideBound = settings.getBarrierPosX() - settings.getBarrierWidth() / 2;
+        holeRightSideBound = settings.getBarrierPosX() + settings.getBarrierWidth() / 2;
+        holeTopBound = settings.getHolePosY() + settings.getHoleHeight() / 2;
+        holeBottomBound = settings.getHolePosY() - settings.getHoleHeight() / 2;
+    }
+
+    /**
+     * @param horizon
+     *            Time in seconds to look ahead, walls out of reach within
+     *            it are skipped without solving for the hit time.
+     * @return Wall the particle hits first within the horizon, or -1 if it does not hit one.
+     */
+    int findWall(final double x, final double y, final double vX, final double vY, final double horizon) {
+        boolean bounded = horizon < INFINITY;
+        double reachX = Math.abs(vX) * horizon;
+        double reachY = Math.abs(vY) * horizon + Math.abs(g) * horizon * horizon / 2;
+        double best = horizon;
+        int wall = -1;
+
+        for (int candidate = 0; candidate < WALL_COUNT; candidate++) {
+            if (bounded && !canReach(candidate, x, y, reachX, reachY)) {
+                continue;
+            }
+
+            double time = getHitTime(x, y, vX, vY, candidate);
+            if (time <= best && time < INFINITY) {
+                best = time;
+                wall = candidate;
+            }
+        }
+
+        return wall;
+    }
+
+    private boolean canReach(final int wall, final double x, final double y, final double reachX,
+                             final double reachY) {
+        switch (wall) {
+            case BOX_LEFT:
+                return x - reachX <= particleRadius;
+            case BOX_RIGHT:
+                return x + reachX >= boxWidth - particleRadius;
+            case BOX_TOP:
+                return y + reachY >= boxHeight - particleRadius;
+            case BOX_BOTTOM:
+                return y - reachY <= particleRadius;
+            case BARRIER_LEFT:
+                return x + reachX >= holeLeftSideBound - particleRadius;
+            case BARRIER_RIGHT:
+                return x - reachX <= holeRightSideBound + particleRadius;
+            default:
+                // hole walls and edges are all within the barrier
+                return x + reachX > holeLeftSideBound - particleRadius
+                        && x - reachX < holeRightSideBound + particleRadius
+                        && y + reachY >= holeBottomBound && y - reachY <= holeTopBound;
+        }
+    }
+
+    /**
+     * @return Time in seconds until the particle hits the given wall, infinity if it does not.
+     */
+    double getHitTime(final double x, final double y, final double vX, final double vY, final int wall) {
+        double time;
+
+        switch (wall) {
+            case BOX_LEFT:
+                return crossingTime(x, vX, 0, particleRadius, -1, true);
+            case BOX_RIGHT:
+                return crossingTime(x, vX, 0, boxWidth - particleRadius, 1, true);
+            case BOX_TOP:
+                return crossingTime(y, vY, g, boxHeight - particleRadius, 1, true);
+            case BOX_BOTTOM:
+                return crossingTime(y, vY, g, particleRadius, -1, true);
+            case BARRIER_LEFT:
+                // only where there is no hole
+                if (x > holeLeftSideBound - particleRadius) {
+                    return INFINITY;
+                }
+                time = crossingTime(x, vX, 0, holeLeftSideBound - particleRadius, 1, false);
+                return inHoleBand(yAt(y, vY, time)) ? INFINITY : time;
+            case BARRIER_RIGHT:
+                if (x < holeRightSideBound + particleRadius) {
+                    return INFINITY;
+                }
+                time = crossingTime(x, vX, 0, holeRightSideBound + particleRadius, -1, false);
+                return inHoleBand(yAt(y, vY, time)) ? INFINITY : time;
+            case HOLE_TOP:
+                // only while inside the hole
+                time = crossingTime(y, vY, g, holeTopBound - particleRadius, 1, true);
+                return inHole(x + vX * time) ? time : INFINITY;
+            case HOLE_BOTTOM:
+                time = crossingTime(y, vY, g, holeBottomBound + particleRadius, -1, true);
+                return inHole(x + vX * time) ? time : INFINITY;
+            case EDGE_TOP:
+                // while overlapping a barrier face and moving towards it
+                time = crossingTime(y, vY, g, holeTopBound, 1, false);
+                return overlapsBarrierSide(x + vX * time, vX) ? time : INFINITY;
+            case EDGE_BOTTOM:
+                time = crossingTime(y, vY, g, holeBottomBound, -1, false);
+                return overlapsBarrierSide(x + vX * time, vX) ? time : INFINITY;
+            default:
+                return INFINITY;
+        }
+    }
+
+    /**
+     * Apply the velocity change of hitting a wall, putting the particle
+     * exactly onto it.
+     */
+    void bounce(final int wall, final double[] posX, final double[] posY, final double[] velocityX,
+                final double[] velocityY, final int i) {
+        switch (wall) {
+            case BOX_LEFT:
+                posX[i] = particleRadius;
+                velocityX[i] = -velocityX[i] + settings.getSpeedDeltaSides();
+                break;
+            case BOX_RIGHT:
+                posX[i] = boxWidth - particleRadius;
+                velocityX[i] = -velocityX[i] - settings.getSpeedDeltaSides();
+                break;
+            case BOX_TOP:
+                posY[i] = boxHeight - particleRadius;
+                velocityY[i] = -velocityY[i] - settings.getSpeedDeltaTop();
+                break;
+            case BOX_BOTTOM:
+                posY[i] = particleRadius;
+                velocityY[i] = -velocityY[i] + settings.getSpeedDeltaBottom();
+                break;
+            case BARRIER_LEFT:
+                posX[i] = holeLeftSideBound - particleRadius;
+                velocityX[i] = -velocityX[i] - settings.getSpeedDeltaSides();
+                break;
+            case BARRIER_RIGHT:
+                posX[i] = holeRightSideBound + particleRadius;
+                velocityX[i] = -velocityX[i] + settings.getSpeedDeltaSides();
+                break;
+            case HOLE_TOP:
+                posY[i] = holeTopBound - particleRadius;
+                velocityY[i] = -velocityY[i] - settings.getSpeedDeltaTop();
+                break;
+            case HOLE_BOTTOM:
+                posY[i] = holeBottomBound + particleRadius;
+                velocityY[i] = -velocityY[i] + settings.getSpeedDeltaBottom();
+                break;
+            default:
+                // hole edge, bounce off the barrier face the particle overlaps
+                if (posX[i] < settings.getBarrierPosX()) {
+                    velocityX[i] = -velocityX[i] - settings.getSpeedDeltaSides();
+                } else {
+                    velocityX[i] = -velocityX[i] + settings.getSpeedDeltaSides();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Move a particle for the given time, bouncing it off every wall it hits
+     * on the way, so it cannot pass through a wall however long the time is.
+     */
+    void sweep(final double[] posX, final double[] posY, final double[] velocityX, final double[] velocityY,
+               final int i, final double duration) {
+        double remaining = duration;
+
+        for (int bounce = 0; bounce < MAX_BOUNCES; bounce++) {
+            int wall = findWall(posX[i], posY[i], velocityX[i], velocityY[i], remaining);
+            if (wall < 0) {
+                break;
+            }
+
+            double time = getHitTime(posX[i], posY[i], velocityX[i], velocityY[i], wall);
+
+            move(posX, posY, velocityX, velocityY, i, time);
+            bounce(wall, posX, posY, velocityX, velocityY, i);
+            remaining -= time;
+        }
+
+        move(posX, posY, velocityX, velocityY, i, remaining);
+    }
+
+    private void move(final double[] posX, final double[] posY, final double[] velocityX, final double[] velocityY,
+                      final int i, final double time) {
+        posX[i] += velocityX[i] * time;
+        posY[i] += velocityY[i] * time - g * time * time / 2;
+        velocityY[i] -= g * time;
+    }
+
+    private double yAt(final double y, final double vY, final double time) {
+        return y + vY * time - g * time * time / 2;
+    }
+
+    private boolean inHoleBand(final double y) {
+        return y <= holeTopBound && y >= holeBottomBound;
+    }
+
+    private boolean inHole(final double x) {
+        return x > holeLeftSideBound && x < holeRightSideBound;
+    }
+
+    private boolean overlapsBarrierSide(final double x, final double vX) {
+        return (vX > 0 && x > holeLeftSideBound - particleRadius && x <= holeLeftSideBound)
+                || (vX < 0 && x < holeRightSideBound + particleRadius && x >= holeRightSideBound);
+    }
+
+    /**
+     * Earliest time a coordinate moving as {@code p + v t - a t^2 / 2} reaches
+     * the target while moving in the given direction.
+     *
+     * @param direction
+     *            1 to look for an increasing crossing, -1 for a decreasing one.
+     * @param whenBeyond
+     *            Return zero if the coordinate already is past the target
+     *            and keeps moving away, useful for walls which must not be
+     *            passed through.
+     * @return Time in seconds from now, infinity if there is no crossing.
+     */
+    static double crossingTime(final double p, final double v, final double a, final double target,
+                               final int direction, final boolean whenBeyond) {
+        double c = p - target;
+
+        // exactly on the target and moving back, as put by bounce(), the
+        // acceleration may still turn it around, so the parabola is solved
+        if (c * direction > 0 || (c == 0 && v * direction >= 0)) {
+            return whenBeyond && v * direction > 0 ? 0 : INFINITY;
+        }
+
+        if (a == 0) {
+            return v * direction > 0 ? -c / v : INFINITY;
+        }
+
+        // solve -a / 2 * t^2 + v * t + c = 0
+        double discriminant = v * v + 2 * a * c;
+        if (discriminant < 0) {
+            return INFINITY;
+        }
+
+        double root = Math.sqrt(discriminant);
+        double first = Math.min((v - root) / a, (v + root) / a);
+        double second = Math.max((v - root) / a, (v + root) / a);
+        // on the target the root t = 0 is the particle leaving it, not a crossing
+        double earliest = c == 0 ? Double.MIN_VALUE : 0;
+
+        if (first >= earliest && (v - a * first) * direction > 0) {
+            return first;
+        }
+        if (second >= earliest && (v - a * second) * direction > 0) {
+            return second;
+        }
+
+        return INFINITY;
+    }
+}
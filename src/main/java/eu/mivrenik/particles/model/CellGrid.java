@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.model;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid (cell list) used as a collision broadphase.
+ *
+ * The box is split into cells which are at least {@code minCellSize} wide
+ * and high, so two particles closer than that always lie in the same or in
+ * adjacent cells. Particle indices are bucketed by cell with a counting sort,
+ * cells are numbered column by column ({@code column * rows + row}).
+ *
+ * The sort is stable, so when particles are laid out in the order of the
+ * previous rebuild and only a few of them changed cell, it mostly reads and
+ * writes memory sequentially.
+ */
+final class CellGrid {
+    private static final int CELLS_PER_PARTICLE = 4;
+
+    private final int columns;
+    private final int rows;
+    private final double columnsPerUnit;
+    private final double rowsPerUnit;
+    private final int[] cellStart;
+    private int[] cellOf = new int[0];
+    private int[] order = new int[0];
+    private int orderedCount = -1;
+
+    /**
+     * @param width
+     *            Box width.
+     * @param height
+     *            Box height.
+     * @param minCellSize
+     *            Minimal cell width and height, usually the particle diameter.
+     * @param capacity
+     *            Expected particle count. Cells are enlarged so there are at
+     *            most a few cells per particle.
+     */
+    CellGrid(final double width, final double height, final double minCellSize, final int capacity) {
+        double cellSize = Math.max(minCellSize, Math.sqrt(width * height / Math.max(CELLS_PER_PARTICLE * capacity, 1)));
+
+        columns = cellCount(width, cellSize);
+        rows = cellCount(height, cellSize);
+        columnsPerUnit = width > 0 ? columns / width : 0;
+        rowsPerUnit = height > 0 ? rows / height : 0;
+        cellStart = new int[columns * rows + 1];
+    }
+
+    private static int cellCount(final double length, final double cellSize) {
+        if (!(cellSize > 0) || !(length > cellSize)) {
+            return 1;
+        }
+
+        return (int) Math.min(length / cellSize, Integer.MAX_VALUE / 2);
+    }
+
+    int getColumns() {
+        return columns;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    double getCellWidth() {
+        return 1 / columnsPerUnit;
+    }
+
+    double getCellHeight() {
+        return 1 / rowsPerUnit;
+    }
+
+    /**
+     * @return True if particles closer than the distance always lie in the same or adjacent cells.
+     */
+    boolean covers(final double distance) {
+        return (columns == 1 || getCellWidth() >= distance) && (rows == 1 || getCellHeight() >= distance);
+    }
+
+    int getColumn(final double x) {
+        int column = (int) (x * columnsPerUnit);
+
+        return column < 0 ? 0 : (column >= columns ? columns - 1 : column);
+    }
+
+    int getRow(final double y) {
+        int row = (int) (y * rowsPerUnit);
+
+        return row < 0 ? 0 : (row >= rows ? rows - 1 : row);
+    }
+
+    int getCell(final int column, final int row) {
+        return column * rows + row;
+    }
+
+    /**
+     * @return Cell the particle was put into by the last {@link #rebuild(ParticleStore)}.
+     */
+    int getParticleCell(final int particle) {
+        return cellOf[particle];
+    }
+
+    /**
+     * @return True if the last rebuild indexed the given number of particles.
+     */
+    boolean isOrdered(final int count) {
+        return orderedCount == count;
+    }
+
+    /**
+     * @return Position of the first particle of the cell in {@link #getParticle(int)} order.
+     */
+    int getCellStart(final int cell) {
+        return cellStart[cell];
+    }
+
+    /**
+     * @return Position past the last particle of the cell in {@link #getParticle(int)} order.
+     */
+    int getCellEnd(final int cell) {
+        return cellStart[cell + 1];
+    }
+
+    /**
+     * @return Index of the particle stored at the given position of the cell-sorted order.
+     */
+    int getParticle(final int position) {
+        return order[position];
+    }
+
+    /**
+     * @return Particle indices in cell-sorted order, valid for the first
+     *         {@code count} positions of the last rebuild.
+     */
+    int[] getOrder() {
+        return order;
+    }
+
+    /**
+     * Bucket particles by the cell their centre lies in.
+     *
+     * @param particles
+     *            Particles to index. Particles outside of the box are put
+     *            into the nearest border cell.
+     */
+    void rebuild(final ParticleStore particles) {
+        int count = particles.size();
+
+        if (order.length < count) {
+            order = new int[count];
+            cellOf = new int[count];
+        }
+
+        Arrays.fill(cellStart, 0);
+        for (int i = 0; i < count; i++) {
+            int cell = getCell(getColumn(particles.posX[i]), getRow(particles.posY[i]));
+            cellOf[i] = cell;
+            cellStart[cell + 1]++;
+        }
+
+        for (int cell = 0; cell < cellStart.length - 1; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+
+        // stable placement, cellStart[cell] is used as a cursor and restored afterwards
+        for (int i = 0; i < count; i++) {
+            order[cellStart[cellOf[i]]++] = i;
+        }
+
+        for (int cell = cellStart.length - 1; cell > 0; cell--) {
+            cellStart[cell] = cellStart[cell - 1];
+        }
+        cellStart[0] = 0;
+        orderedCount = count;
+    }
+}
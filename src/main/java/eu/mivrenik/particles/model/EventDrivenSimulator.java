@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.model;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Event-driven hard disk simulator.
+ *
+ * Instead of moving every particle by a small fixed step and looking for
+ * overlaps, it predicts the exact moment of every disk-disk and disk-wall
+ * collision and processes them in time order from a priority queue. Between
+ * events particles fly along parabolas, which are only evaluated when needed.
+ * Collision rules (speed loss and wall speed deltas) are the same as in the
+ * fixed step {@link Simulator}, and the barrier corners are handled like
+ * there as well: a particle crossing the hole edge while overlapping the
+ * barrier side is bounced off that side.
+ *
+ * Candidate partners are looked up in a cell grid, so every particle also
+ * gets an event when it moves to another cell. A pair is only scheduled if it
+ * collides before either particle changes cell, which keeps the queue small.
+ *
+ * Each {@link #nextTimeStep(ParticleStore, ParticleStore, long)} call
+ * processes events up to the requested time and writes a snapshot of every
+ * particle, so {@link #getTimeStep(ParticleStore)} is the frame interval.
+ */
+public class EventDrivenSimulator extends Simulator {
+    private static final double INFINITY = Double.POSITIVE_INFINITY;
+
+    private static final int CELL_LEFT = BoxGeometry.WALL_COUNT;
+    private static final int CELL_RIGHT = CELL_LEFT + 1;
+    private static final int CELL_DOWN = CELL_LEFT + 2;
+    private static final int CELL_UP = CELL_LEFT + 3;
+    private static final int PAIR = CELL_LEFT + 4;
+
+    private final double particleRadius;
+    private final double g;
+    private final double factor;
+    private final BoxGeometry geometry;
+    private final CellGrid grid;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private ParticleStore lastTarget;
+    private double now; // seconds
+
+    // particle state at its own reference time
+    private int[] id = new int[0];
+    private double[] time = new double[0];
+    private double[] posX = new double[0];
+    private double[] posY = new double[0];
+    private double[] velocityX = new double[0];
+    private double[] velocityY = new double[0];
+    private int[] collisions = new int[0];
+    private int[] transits = new int[0];
+    private double[] transitTime = new double[0];
+
+    // cells as doubly linked lists of particles
+    private int[] cellHead = new int[0];
+    private int[] cellOf = new int[0];
+    private int[] next = new int[0];
+    private int[] previous = new int[0];
+
+    public EventDrivenSimulator(final ExperimentSettings experimentSettings) {
+        this(newBuilder().settings(experimentSettings));
+    }
+
+    EventDrivenSimulator(final Builder builder) {
+        super(builder);
+
+        ExperimentSettings settings = getSettings();
+        particleRadius = settings.getParticleRadius();
+        g = settings.getG();
+        factor = Math.sqrt(1 - settings.getSpeedLoss());
+        geometry = new BoxGeometry(settings);
+        grid = new CellGrid(settings.getBoxWidth(), settings.getBoxHeight(), 2 * particleRadius,
+                settings.getParticleCount());
+    }
+
+    /**
+     * @return Frame interval of the experiment, events in between are processed exactly.
+     */
+    @Override
+    public long getTimeStep(final ParticleStore store) {
+        return Math.floorDiv(1000000, getSettings().getFps());
+    }
+
+    /**
+     * Process every event up to {@code from.getTime() + deltaTime} and write
+     * a snapshot of all particles at that moment into {@code to}.
+     *
+     * The simulator continues from its own event queue when {@code from} is
+     * the store filled by the previous call. Any other store restarts the
+     * prediction from the particles it contains.
+     */
+    @Override
+    public long nextTimeStep(final ParticleStore from, final ParticleStore to, final long deltaTime) {
+        if (from != lastTarget || toSeconds(from.getTime()) != now) {
+            initialize(from);
+        }
+
+        double target = toSeconds(from.getTime() + deltaTime);
+
+        while (!events.isEmpty() && events.peek().time <= target) {
+            Event event = events.poll();
+
+            if (isValid(event)) {
+                now = event.time;
+                process(event);
+            }
+        }
+        now = target;
+
+        double speedSquaredMax = 0.0;
+        for (int i = 0; i < id.length; i++) {
+            double dt = now - time[i];
+
+            to.id[i] = id[i];
+            to.posX[i] = posX[i] + velocityX[i] * dt;
+            to.posY[i] = posY[i] + velocityY[i] * dt - g * dt * dt / 2;
+            to.velocityX[i] = velocityX[i];
+            to.velocityY[i] = velocityY[i] - g * dt;
+            speedSquaredMax = Math.max(to.velocityX[i] * to.velocityX[i] + to.velocityY[i] * to.velocityY[i],
+                    speedSquaredMax);
+        }
+        to.setTime(from.getTime() + deltaTime);
+        to.setMaxSpeedSquared(speedSquaredMax);
+
+        lastTarget = to;
+        setLastTime(to.getTime());
+
+        return getTimeStep(to);
+    }
+
+    private static double toSeconds(final long microseconds) {
+        return microseconds / 1000000.0;
+    }
+
+    private void initialize(final ParticleStore store) {
+        int count = store.size();
+
+        if (id.length != count) {
+            id = new int[count];
+            time = new double[count];
+            posX = new double[count];
+            posY = new double[count];
+            velocityX = new double[count];
+            velocityY = new double[count];
+            collisions = new int[count];
+            transits = new int[count];
+            transitTime = new double[count];
+            cellOf = new int[count];
+            next = new int[count];
+            previous = new int[count];
+            cellHead = new int[grid.getColumns() * grid.getRows()];
+        }
+
+        now = toSeconds(store.getTime());
+        events.clear();
+        Arrays.fill(cellHead, -1);
+        Arrays.fill(collisions, 0);
+        Arrays.fill(transits, 0);
+
+        for (int i = 0; i < count; i++) {
+            id[i] = store.id[i];
+            time[i] = now;
+            posX[i] = store.posX[i];
+            posY[i] = store.posY[i];
+            velocityX[i] = store.velocityX[i];
+            velocityY[i] = store.velocityY[i];
+            insert(i, grid.getCell(grid.getColumn(posX[i]), grid.getRow(posY[i])));
+        }
+
+        // pair predictions look at the transit time of both particles
+        for (int i = 0; i < count; i++) {
+            predictTransit(i);
+        }
+        for (int i = 0; i < count; i++) {
+            predictWall(i);
+            predictPairs(i);
+        }
+    }
+
+    private boolean isValid(final Event event) {
+        if (collisions[event.particle] != event.particleCount) {
+            return false;
+        }
+
+        if (event.type == PAIR) {
+            return collisions[event.other] == event.otherCount;
+        } else if (event.type >= CELL_LEFT) {
+            return transits[event.particle] == event.otherCount;
+        }
+
+        return true;
+    }
+
+    private void process(final Event event) {
+        int i = event.particle;
+
+        if (event.type == PAIR) {
+            int j = event.other;
+
+            advance(i);
+            advance(j);
+
+            double dX = posX[i] - posX[j];
+            double dY = posY[i] - posY[j];
+            double distance = Math.sqrt(dX * dX + dY * dY);
+
+            Simulator.exchangeVelocities(velocityX, velocityY, i, j, dX / distance, dY / distance, factor);
+
+            collisions[i]++;
+            collisions[j]++;
+            predict(i);
+            predict(j);
+        } else if (event.type >= CELL_LEFT) {
+            int column = cellOf[i] / grid.getRows();
+            int row = cellOf[i] % grid.getRows();
+
+            if (event.type == CELL_LEFT) {
+                column--;
+            } else if (event.type == CELL_RIGHT) {
+                column++;
+            } else if (event.type == CELL_DOWN) {
+                row--;
+            } else {
+                row++;
+            }
+
+            remove(i);
+            insert(i, grid.getCell(column, row));
+            transits[i]++;
+            predictTransit(i);
+            predictPairs(i);
+        } else {
+            advance(i);
+            geometry.bounce(event.type, posX, posY, velocityX, velocityY, i);
+            collisions[i]++;
+            predict(i);
+        }
+    }
+
+    /**
+     * Move the reference point of a particle to the current time.
+     */
+    private void advance(final int i) {
+        double dt = now - time[i];
+
+        posX[i] += velocityX[i] * dt;
+        posY[i] += velocityY[i] * dt - g * dt * dt / 2;
+        velocityY[i] -= g * dt;
+        time[i] = now;
+    }
+
+    private void predict(final int i) {
+        predictTransit(i);
+        predictWall(i);
+        predictPairs(i);
+    }
+
+    private void predictTransit(final int i) {
+        double dt = now - time[i];
+        double x = posX[i] + velocityX[i] * dt;
+        double y = posY[i] + velocityY[i] * dt - g * dt * dt / 2;
+        double vY = velocityY[i] - g * dt;
+        int column = cellOf[i] / grid.getRows();
+        int row = cellOf[i] % grid.getRows();
+        double left = column > 0 ? column * grid.getCellWidth() : Double.NEGATIVE_INFINITY;
+        double right = column < grid.getColumns() - 1 ? (column + 1) * grid.getCellWidth() : INFINITY;
+        double bottom = row > 0 ? row * grid.getCellHeight() : Double.NEGATIVE_INFINITY;
+        double top = row < grid.getRows() - 1 ? (row + 1) * grid.getCellHeight() : INFINITY;
+        double best = INFINITY;
+        int type = -1;
+        double t;
+
+        if ((t = BoxGeometry.crossingTime(x, velocityX[i], 0, left, -1, true)) < best) {
+            best = t;
+            type = CELL_LEFT;
+        }
+        if ((t = BoxGeometry.crossingTime(x, velocityX[i], 0, right, 1, true)) < best) {
+            best = t;
+            type = CELL_RIGHT;
+        }
+        if ((t = BoxGeometry.crossingTime(y, vY, g, bottom, -1, true)) < best) {
+            best = t;
+            type = CELL_DOWN;
+        }
+        if ((t = BoxGeometry.crossingTime(y, vY, g, top, 1, true)) < best) {
+            best = t;
+            type = CELL_UP;
+        }
+
+        transitTime[i] = now + best;
+        if (type >= 0) {
+            events.add(new Event(now + best, i, -1, type, collisions[i], transits[i]));
+        }
+    }
+
+    private void predictWall(final int i) {
+        double dt = now - time[i];
+        double x = posX[i] + velocityX[i] * dt;
+        double y = posY[i] + velocityY[i] * dt - g * dt * dt / 2;
+        double vY = velocityY[i] - g * dt;
+        int wall = geometry.findWall(x, y, velocityX[i], vY, INFINITY);
+
+        if (wall >= 0) {
+            double eventTime = now + geometry.getHitTime(x, y, velocityX[i], vY, wall);
+            events.add(new Event(eventTime, i, -1, wall, collisions[i], 0));
+        }
+    }
+
+    private void predictPairs(final int i) {
+        int column = cellOf[i] / grid.getRows();
+        int row = cellOf[i] % grid.getRows();
+        int lastColumn = Math.min(column + 1, grid.getColumns() - 1);
+        int lastRow = Math.min(row + 1, grid.getRows() - 1);
+
+        for (int nColumn = Math.max(column - 1, 0); nColumn <= lastColumn; nColumn++) {
+            for (int nRow = Math.max(row - 1, 0); nRow <= lastRow; nRow++) {
+                for (int j = cellHead[grid.getCell(nColumn, nRow)]; j >= 0; j = next[j]) {
+                    if (j != i) {
+                        predictPair(i, j);
+                    }
+                }
+            }
+        }
+    }
+
+    private void predictPair(final int i, final int j) {
+        double dtI = now - time[i];
+        double dtJ = now - time[j];
+
+        // gravity accelerates both particles equally, so relative motion is linear
+        double dX = (posX[i] + velocityX[i] * dtI) - (posX[j] + velocityX[j] * dtJ);
+        double dY = (posY[i] + velocityY[i] * dtI - g * dtI * dtI / 2)
+                - (posY[j] + velocityY[j] * dtJ - g * dtJ * dtJ / 2);
+        double dVx = velocityX[i] - velocityX[j];
+        double dVy = (velocityY[i] - g * dtI) - (velocityY[j] - g * dtJ);
+
+        double b = dX * dVx + dY * dVy;
+        if (b >= 0) {
+            return;
+        }
+
+        double a = dVx * dVx + dVy * dVy;
+        double c = dX * dX + dY * dY - 4 * particleRadius * particleRadius;
+        double discriminant = b * b - a * c;
+        if (discriminant < 0) {
+            return;
+        }
+
+        double t = c <= 0 ? 0 : c / (-b + Math.sqrt(discriminant));
+        double eventTime = now + t;
+
+        if (eventTime <= Math.min(transitTime[i], transitTime[j])) {
+            events.add(new Event(eventTime, i, j, PAIR, collisions[i], collisions[j]));
+        }
+    }
+
+    private void insert(final int i, final int cell) {
+        cellOf[i] = cell;
+        previous[i] = -1;
+        next[i] = cellHead[cell];
+        if (next[i] >= 0) {
+            previous[next[i]] = i;
+        }
+        cellHead[cell] = i;
+    }
+
+    private void remove(final int i) {
+        if (previous[i] >= 0) {
+            next[previous[i]] = next[i];
+        } else {
+            cellHead[cellOf[i]] = next[i];
+        }
+        if (next[i] >= 0) {
+            previous[next[i]] = previous[i];
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+        private final double time;
+        private final int particle;
+        private final int other;
+        private final int type;
+        private final int particleCount;
+        private final int otherCount;
+
+        Event(final double time, final int particle, final int other, final int type,
+              final int particleCount, final int otherCount) {
+            this.time = time;
+            this.particle = particle;
+            this.other = other;
+            this.type = type;
+            this.particleCount = particleCount;
+            this.otherCount = otherCount;
+        }
+
+        @Override
+        public int compareTo(final Event o) {
+            return Double.compare(time, o.time);
+        }
+    }
+}
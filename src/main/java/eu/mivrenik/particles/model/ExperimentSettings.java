@@ -77,6 +77,12 @@ public final class ExperimentSettings {
     private final float particleRadius;
     private final float g;
 
+    /**
+     * Placement of particles at the beginning of experiment. It is not
+     * stored in experiment files, since those contain the positions.
+     */
+    private final ParticlePlacement particlePlacement;
+
     private ExperimentSettings(final Builder builder) {
         particleCountLeft = builder.particleCountLeft;
         particleCountRight = builder.particleCountRight;
@@ -96,6 +102,7 @@ public final class ExperimentSettings {
         fps = builder.fps;
         duration = builder.duration;
         seed = builder.seed;
+        particlePlacement = builder.particlePlacement;
     }
 
     public int getParticleCountLeft() {
@@ -174,6 +181,10 @@ public final class ExperimentSettings {
         return seed;
     }
 
+    public ParticlePlacement getParticlePlacement() {
+        return particlePlacement;
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) return true;
@@ -198,7 +209,8 @@ public final class ExperimentSettings {
         if (seed != that.seed) return false;
         if (Float.compare(that.speedLoss, speedLoss) != 0) return false;
         if (Float.compare(that.particleRadius, particleRadius) != 0) return false;
-        return Float.compare(that.g, g) == 0;
+        if (Float.compare(that.g, g) != 0) return false;
+        return particlePlacement == that.particlePlacement;
 
     }
 
@@ -222,6 +234,7 @@ public final class ExperimentSettings {
         result = 31 * result + (speedLoss != +0.0f ? Float.floatToIntBits(speedLoss) : 0);
         result = 31 * result + (particleRadius != +0.0f ? Float.floatToIntBits(particleRadius) : 0);
         result = 31 * result + (g != +0.0f ? Float.floatToIntBits(g) : 0);
+        result = 31 * result + particlePlacement.ordinal();
         return result;
     }
 
@@ -229,6 +242,27 @@ public final class ExperimentSettings {
         return new Builder();
     }
 
+    /**
+     * @return Builder initialised with every setting of the source, so a few
+     *         of them can be changed, e.g. the seed of a repeated run.
+     */
+    public static Builder newBuilder(final ExperimentSettings source) {
+        return new Builder()
+                .particleCount(source.particleCountLeft, source.particleCountRight)
+                .initialSpeed(source.initialSpeed)
+                .boxSize(source.boxWidth, source.boxHeight)
+                .speedDelta(source.speedDeltaTop, source.speedDeltaSides, source.speedDeltaBottom)
+                .barrier(source.barrierPosX, source.barrierWidth)
+                .hole(source.holePosY, source.holeHeight)
+                .speedLoss(source.speedLoss)
+                .particleRadius(source.particleRadius)
+                .g(source.g)
+                .fps(source.fps)
+                .duration(source.duration)
+                .seed(source.seed)
+                .particlePlacement(source.particlePlacement);
+    }
+
     public static class Builder {
         private int particleCountLeft;
         private int particleCountRight;
@@ -248,6 +282,7 @@ public final class ExperimentSettings {
         private int fps;
         private int duration;
         private int seed;
+        private ParticlePlacement particlePlacement = ParticlePlacement.RANDOM;
 
         public Builder particleCount(final int left, final int right) {
             particleCountLeft = left;
@@ -327,6 +362,12 @@ public final class ExperimentSettings {
             return this;
         }
 
+        public Builder particlePlacement(final ParticlePlacement particlePlacement) {
+            this.particlePlacement = particlePlacement;
+
+            return this;
+        }
+
         public ExperimentSettings build() {
             return new ExperimentSettings(this);
         }
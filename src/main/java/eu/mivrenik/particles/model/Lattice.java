@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.model;
+
+/**
+ * Square or hexagonal lattice of particle sites within a rectangle.
+ *
+ * The spacing is the largest one which still gives at least the requested
+ * number of sites, found by bisection. Sites keep a margin of
+ * {@link #getJitter()} from the rectangle bounds, so a particle can be
+ * moved anywhere within that distance of its site without leaving the
+ * rectangle or touching particles on neighbouring sites.
+ */
+final class Lattice {
+    private static final double SQRT_3 = Math.sqrt(3);
+    private static final int BISECTION_STEPS = 64;
+
+    private final boolean hexagonal;
+    private final double width;
+    private final double height;
+    private final double diameter;
+    private final double spacing;
+    private final int columns;
+    private final int shiftedColumns;
+    private final int rows;
+    private final double originX;
+    private final double originY;
+
+    /**
+     * @param hexagonal
+     *            Hexagonal lattice if true, square lattice otherwise.
+     * @param left
+     *            Lowest X position of a particle centre.
+     * @param bottom
+     *            Lowest Y position of a particle centre.
+     * @param width
+     *            Width of the range of particle centres.
+     * @param height
+     *            Height of the range of particle centres.
+     * @param diameter
+     *            Particle diameter, the smallest allowed spacing.
+     * @param count
+     *            Number of sites needed.
+     * @throws IllegalArgumentException
+     *             If even the densest lattice has less than {@code count} sites.
+     */
+    Lattice(final boolean hexagonal, final double left, final double bottom, final double width,
+            final double height, final double diameter, final int count) {
+        this.hexagonal = hexagonal;
+        this.width = width;
+        this.height = height;
+        this.diameter = diameter;
+
+        int maxCapacity = getCapacity(diameter);
+        if (count > maxCapacity) {
+            throw new IllegalArgumentException("Cannot fit " + count + " particles, at most " + maxCapacity
+                    + " fit into a " + (hexagonal ? "hexagonal" : "square") + " lattice");
+        }
+
+        // invariant: lower spacing has enough sites, upper one does not
+        double lower = diameter;
+        double upper = Math.max(width, height) + diameter + 1;
+        for (int step = 0; step < BISECTION_STEPS && count > 0; step++) {
+            double middle = (lower + upper) / 2;
+
+            if (getCapacity(middle) >= count) {
+                lower = middle;
+            } else {
+                upper = middle;
+            }
+        }
+
+        spacing = lower;
+        columns = getColumns(spacing, 0);
+        shiftedColumns = hexagonal ? getColumns(spacing, spacing / 2) : columns;
+        rows = getRows(spacing);
+
+        // centre the lattice within the spare room
+        double usedWidth = (columns - 1) * spacing;
+        if (hexagonal && shiftedColumns > 0) {
+            usedWidth = Math.max(usedWidth, (shiftedColumns - 0.5) * spacing);
+        }
+        originX = left + getJitter() + (getInnerWidth(spacing) - usedWidth) / 2;
+        originY = bottom + getJitter() + (getInnerHeight(spacing) - (rows - 1) * getRowSpacing(spacing)) / 2;
+    }
+
+    /**
+     * @return Distance between neighbouring sites.
+     */
+    double getSpacing() {
+        return spacing;
+    }
+
+    /**
+     * @return How far a particle may be moved from its site.
+     */
+    double getJitter() {
+        return (spacing - diameter) / 2;
+    }
+
+    /**
+     * @return Number of lattice sites.
+     */
+    int getCapacity() {
+        return getCapacity(spacing);
+    }
+
+    double getSiteX(final int site) {
+        int column = site % (columns + shiftedColumns);
+
+        if (column >= columns) {
+            return originX + (column - columns + (hexagonal ? 0.5 : 0)) * spacing;
+        }
+
+        return originX + column * spacing;
+    }
+
+    double getSiteY(final int site) {
+        int pair = columns + shiftedColumns;
+        int row = 2 * (site / pair) + (site % pair >= columns ? 1 : 0);
+
+        return originY + row * getRowSpacing(spacing);
+    }
+
+    private int getCapacity(final double siteSpacing) {
+        int siteRows = getRows(siteSpacing);
+        int evenRows = (siteRows + 1) / 2;
+        int oddRows = siteRows / 2;
+        int oddColumns = getColumns(siteSpacing, hexagonal ? siteSpacing / 2 : 0);
+
+        return (int) Math.min((long) evenRows * getColumns(siteSpacing, 0) + (long) oddRows * oddColumns,
+                Integer.MAX_VALUE);
+    }
+
+    private double getRowSpacing(final double siteSpacing) {
+        return hexagonal ? siteSpacing * SQRT_3 / 2 : siteSpacing;
+    }
+
+    private double getInnerWidth(final double siteSpacing) {
+        return width - (siteSpacing - diameter);
+    }
+
+    private double getInnerHeight(final double siteSpacing) {
+        return height - (siteSpacing - diameter);
+    }
+
+    private int getColumns(final double siteSpacing, final double shift) {
+        double room = getInnerWidth(siteSpacing) - shift;
+
+        return room < 0 ? 0 : (int) Math.min(Math.floor(room / siteSpacing) + 1, Integer.MAX_VALUE);
+    }
+
+    private int getRows(final double siteSpacing) {
+        double room = getInnerHeight(siteSpacing);
+
+        return room < 0 ? 0 : (int) Math.min(Math.floor(room / getRowSpacing(siteSpacing)) + 1, Integer.MAX_VALUE);
+    }
+}
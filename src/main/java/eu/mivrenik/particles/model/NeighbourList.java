@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.model;
+
+import java.util.Arrays;
+
+/**
+ * Verlet neighbour lists: for every particle, the particles which were
+ * closer than the collision distance plus a skin when the lists were built.
+ *
+ * As long as no particle has moved by more than half of the skin since,
+ * every pair which can collide is still in the lists, so the broadphase can
+ * be skipped. Lists are stored in compressed sparse row layout and indexed
+ * by position in the {@link CellGrid} order they were built from. Like the
+ * grid, each pair is listed once, under the particle whose cell comes first
+ * in the forward half-stencil.
+ */
+final class NeighbourList {
+    private final double skin;
+    private int[] start = new int[1];
+    private int[] neighbours = new int[0];
+    private double[] referenceX = new double[0];
+    private double[] referenceY = new double[0];
+    private int count = -1;
+
+    /**
+     * @param skin
+     *            Extra distance beyond the collision distance to list pairs at.
+     */
+    NeighbourList(final double skin) {
+        this.skin = skin;
+    }
+
+    /**
+     * @return Position of the first neighbour of the particle at the given grid position.
+     */
+    int getStart(final int position) {
+        return start[position];
+    }
+
+    /**
+     * @return Position past the last neighbour of the particle at the given grid position.
+     */
+    int getEnd(final int position) {
+        return start[position + 1];
+    }
+
+    int getNeighbour(final int entry) {
+        return neighbours[entry];
+    }
+
+    /**
+     * Check whether any particle may move by more than half of the skin from
+     * where it was when the lists were built, by the end of the next step.
+     *
+     * @param particles
+     *            Particles at the beginning of the step, in the layout the lists were built for.
+     * @param deltaTime
+     *            Step length in seconds.
+     * @param g
+     *            Free fall acceleration.
+     */
+    boolean isStale(final ParticleStore particles, final double deltaTime, final double g) {
+        if (particles.size() != count) {
+            return true;
+        }
+
+        double displacementMax = 0;
+        double speedMax = 0;
+
+        for (int i = 0; i < count; i++) {
+            double dX = particles.posX[i] - referenceX[i];
+            double dY = particles.posY[i] - referenceY[i];
+            double vX = particles.velocityX[i];
+            double vY = particles.velocityY[i];
+
+            displacementMax = Math.max(displacementMax, dX * dX + dY * dY);
+            speedMax = Math.max(speedMax, vX * vX + vY * vY);
+        }
+
+        double bound = Math.sqrt(displacementMax) + Math.sqrt(speedMax) * deltaTime
+                + Math.abs(g) * deltaTime * deltaTime / 2;
+
+        return bound > skin / 2;
+    }
+
+    /**
+     * Build lists of the pairs closer than {@code distance} plus the skin.
+     *
+     * @param grid
+     *            Grid just rebuilt for the particles, its cells must be at
+     *            least {@code distance} plus the skin wide.
+     */
+    void build(final ParticleStore particles, final CellGrid grid, final double distance) {
+        double cutoff = distance + skin;
+        double cutoffSquared = cutoff * cutoff;
+        int size = 0;
+
+        count = particles.size();
+        if (start.length < count + 1) {
+            start = new int[count + 1];
+            referenceX = new double[count];
+            referenceY = new double[count];
+        }
+        System.arraycopy(particles.posX, 0, referenceX, 0, count);
+        System.arraycopy(particles.posY, 0, referenceY, 0, count);
+
+        for (int column = 0; column < grid.getColumns(); column++) {
+            for (int row = 0; row < grid.getRows(); row++) {
+                int cell = grid.getCell(column, row);
+                boolean hasNextRow = row + 1 < grid.getRows();
+                boolean hasNextColumn = column + 1 < grid.getColumns();
+                int firstNeighbour = hasNextColumn ? grid.getCell(column + 1, Math.max(row - 1, 0)) : 0;
+                int lastNeighbour = hasNextColumn ? grid.getCell(column + 1, Math.min(row + 1, grid.getRows() - 1))
+                        : -1;
+
+                for (int k = grid.getCellStart(cell); k < grid.getCellEnd(cell); k++) {
+                    int i = grid.getParticle(k);
+                    start[k] = size;
+
+                    size = addNeighbours(particles, grid, i, k + 1, grid.getCellEnd(cell), cutoffSquared, size);
+                    if (hasNextRow) {
+                        size = addNeighbours(particles, grid, i, grid.getCellStart(cell + 1),
+                                grid.getCellEnd(cell + 1), cutoffSquared, size);
+                    }
+                    // cells of the next column are stored one after another
+                    if (firstNeighbour <= lastNeighbour) {
+                        size = addNeighbours(particles, grid, i, grid.getCellStart(firstNeighbour),
+                                grid.getCellEnd(lastNeighbour), cutoffSquared, size);
+                    }
+                }
+            }
+        }
+        start[count] = size;
+    }
+
+    private int addNeighbours(final ParticleStore particles, final CellGrid grid, final int i, final int first,
+                              final int last, final double cutoffSquared, final int size) {
+        int end = size;
+
+        for (int m = first; m < last; m++) {
+            int j = grid.getParticle(m);
+            double dX = particles.posX[i] - particles.posX[j];
+            double dY = particles.posY[i] - particles.posY[j];
+
+            if (dX * dX + dY * dY < cutoffSquared) {
+                if (end == neighbours.length) {
+                    neighbours = Arrays.copyOf(neighbours, Math.max(2 * end, 16));
+                }
+                neighbours[end++] = j;
+            }
+        }
+
+        return end;
+    }
+}
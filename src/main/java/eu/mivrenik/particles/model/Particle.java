@@ -44,19 +44,6 @@ public class Particle {
         this.velocityY = source.velocityY;
     }
 
-    Particle move(final long deltaTime, final double g) {
-        double deltaTimeSec = deltaTime / 1000000.0;
-
-        double newX = this.getPosX() + this.getVelocityX() * deltaTimeSec;
-        double newY = this.getPosY() + this.getVelocityY() * deltaTimeSec - g * deltaTimeSec * deltaTimeSec / 2;
-        double newVx = this.getVelocityX();
-        double newVy = this.getVelocityY() - g * deltaTimeSec;
-
-        this.setPosition(newX, newY);
-        this.setVelocity(newVx, newVy);
-        return this;
-    }
-
     public double getPosX() {
         return posX;
     }
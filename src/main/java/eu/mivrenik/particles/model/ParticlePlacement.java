@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.model;
+
+/**
+ * How {@link Simulator#initialDistribution()} places particles into the
+ * left and right chambers of the box.
+ */
+public enum ParticlePlacement {
+    /**
+     * Independent uniformly random positions without overlaps. Slows down
+     * sharply at high densities, when most candidates are rejected.
+     */
+    RANDOM,
+
+    /**
+     * Square lattice with seeded jitter, spaced as widely as the particle
+     * count of a chamber allows.
+     */
+    SQUARE_LATTICE,
+
+    /**
+     * Hexagonal (close packing) lattice with seeded jitter, spaced as widely
+     * as the particle count of a chamber allows. Fits about 15% more
+     * particles than the square lattice.
+     */
+    HEXAGONAL_LATTICE
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.model;
+
+/**
+ * Structure-of-arrays storage of every particle at a moment of time.
+ *
+ * Unlike {@link ExperimentState} it keeps particle fields in parallel
+ * primitive arrays, so a simulation can be stepped in place without creating
+ * a {@link Particle} object per particle and step. Use {@link #getParticle(int)}
+ * or {@link #toParticles()} where the object API is needed.
+ */
+public final class ParticleStore {
+    final int[] id;
+    final double[] posX;
+    final double[] posY;
+    final double[] velocityX;
+    final double[] velocityY;
+    private long time; // microseconds since the beginning of experiment
+    private double maxSpeedSquared = Double.NaN; // NaN until known
+
+    public ParticleStore(final int size) {
+        id = new int[size];
+        posX = new double[size];
+        posY = new double[size];
+        velocityX = new double[size];
+        velocityY = new double[size];
+    }
+
+    public static ParticleStore of(final ExperimentState state) {
+        Particle[] particles = state.getParticles();
+        ParticleStore store = new ParticleStore(particles.length);
+
+        for (int i = 0; i < particles.length; i++) {
+            store.set(i, particles[i]);
+        }
+        store.setTime(state.getTime());
+
+        return store;
+    }
+
+    public int size() {
+        return id.length;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(final long microseconds) {
+        time = microseconds;
+    }
+
+    public int getId(final int index) {
+        return id[index];
+    }
+
+    public double getPosX(final int index) {
+        return posX[index];
+    }
+
+    public double getPosY(final int index) {
+        return posY[index];
+    }
+
+    public double getVelocityX(final int index) {
+        return velocityX[index];
+    }
+
+    public double getVelocityY(final int index) {
+        return velocityY[index];
+    }
+
+    public double getSpeed(final int index) {
+        return Math.sqrt(velocityX[index] * velocityX[index] + velocityY[index] * velocityY[index]);
+    }
+
+    /**
+     * @return Speed of the fastest particle. It is recorded by the simulation
+     *         step which filled the store and computed on demand otherwise.
+     */
+    public double getMaxSpeed() {
+        if (Double.isNaN(maxSpeedSquared)) {
+            double max = 0.0;
+
+            for (int i = 0; i < size(); i++) {
+                max = Math.max(velocityX[i] * velocityX[i] + velocityY[i] * velocityY[i], max);
+            }
+            maxSpeedSquared = max;
+        }
+
+        return Math.sqrt(maxSpeedSquared);
+    }
+
+    /**
+     * Record the squared speed of the fastest particle after writing to the arrays directly.
+     */
+    void setMaxSpeedSquared(final double speedSquared) {
+        maxSpeedSquared = speedSquared;
+    }
+
+    public void set(final int index, final Particle particle) {
+        maxSpeedSquared = Double.NaN;
+        id[index] = particle.getId();
+        posX[index] = particle.getPosX();
+        posY[index] = particle.getPosY();
+        velocityX[index] = particle.getVelocityX();
+        velocityY[index] = particle.getVelocityY();
+    }
+
+    /**
+     * Copy every particle and the time from another store of the same size.
+     */
+    public void copyFrom(final ParticleStore source) {
+        System.arraycopy(source.id, 0, id, 0, id.length);
+        System.arraycopy(source.posX, 0, posX, 0, posX.length);
+        System.arraycopy(source.posY, 0, posY, 0, posY.length);
+        System.arraycopy(source.velocityX, 0, velocityX, 0, velocityX.length);
+        System.arraycopy(source.velocityY, 0, velocityY, 0, velocityY.length);
+        time = source.time;
+        maxSpeedSquared = source.maxSpeedSquared;
+    }
+
+    public Particle getParticle(final int index) {
+        return Particle.newBuilder()
+                .id(id[index])
+                .position(posX[index], posY[index])
+                .velocity(velocityX[index], velocityY[index])
+                .build();
+    }
+
+    public Particle[] toParticles() {
+        Particle[] particles = new Particle[size()];
+
+        for (int i = 0; i < particles.length; i++) {
+            particles[i] = getParticle(i);
+        }
+
+        return particles;
+    }
+
+    public ExperimentState toState(final ExperimentSettings settings) {
+        return ExperimentState.newBuilder()
+                .particles(toParticles())
+                .settings(settings)
+                .time(time)
+                .build();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.model;
+
+import java.util.SplittableRandom;
+
+/**
+ * Tree of independent random streams derived from one seed.
+ *
+ * Every stream is identified by its path from the root, e.g. chamber and
+ * block of particles, not by the order streams are created in. Work split
+ * between threads therefore draws the same numbers however the threads are
+ * scheduled, as long as every part uses its own stream. Seeds of children
+ * are derived with the SplitMix64 finaliser, so neighbouring seeds and
+ * indices still give unrelated streams.
+ */
+public final class RandomStreams {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final long seed;
+
+    public RandomStreams(final long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return Root of the streams of an experiment.
+     */
+    public static RandomStreams of(final ExperimentSettings settings) {
+        return new RandomStreams(settings.getSeed());
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return Streams below the child with the given index.
+     */
+    public RandomStreams child(final long index) {
+        return new RandomStreams(mix(seed, index));
+    }
+
+    /**
+     * @return Generator of the stream with the given index. A new generator
+     *         is returned on every call, starting from the same state.
+     */
+    public SplittableRandom stream(final long index) {
+        return new SplittableRandom(mix(seed ^ GOLDEN_GAMMA, index));
+    }
+
+    private static long mix(final long seed, final long index) {
+        long z = seed + (index + 1) * GOLDEN_GAMMA;
+
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
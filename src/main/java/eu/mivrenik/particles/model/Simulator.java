@@ -1,35 +1,135 @@
 package eu.mivrenik.particles.model;
 
 import java.util.Arrays;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.DoubleAccumulator;
+
+public class Simulator implements AutoCloseable {
+    /**
+     * Version of the simulation results. It is increased whenever the same
+     * settings start to give different particles, so that results calculated
+     * before are not reused.
+     */
+    public static final int ENGINE_VERSION = 2;
+
+    private static final int MIN_PARALLEL_CHUNK = 1024;
+    private static final int CONTINUOUS_STEP_RADII = 8;
+    private static final int RANDOM_BLOCK = 4096; // particles drawn from one random stream
+    private static final int STREAM_POSITIONS = 0;
+    private static final int STREAM_VELOCITIES = 1;
 
-public class Simulator {
     private ExperimentSettings experimentSettings;
     private ExperimentState lastState;
-    private Random random = new Random();
+    private volatile long lastTime;
+    private CellGrid grid;
+    private int parallelism;
+    private ForkJoinPool pool;
+    private int[] stripeStart;
+    private final boolean continuous;
+    private final BoxGeometry geometry;
+    private double[] pathStart = new double[0]; // seconds since the start of step
+    private double[] pathEnd = new double[0];
+    private ParticleStore orderedStore; // store the grid order and neighbour lists describe
+    private NeighbourList neighbourList;
+    private final StepKernel kernel;
+    private final DoubleAccumulator speedSquaredMax = new DoubleAccumulator(Math::max, 0);
 
     public Simulator(final ExperimentSettings experimentSettings) {
-        random.setSeed(experimentSettings.getSeed());
-        this.experimentSettings = experimentSettings;
+        this(newBuilder().settings(experimentSettings));
     }
 
-    private double generateDouble(final double lowerBound, final double upperBound) {
+    Simulator(final Builder builder) {
+        experimentSettings = builder.settings;
+        grid = new CellGrid(experimentSettings.getBoxWidth(), experimentSettings.getBoxHeight(),
+                2 * experimentSettings.getParticleRadius(), experimentSettings.getParticleCount());
+        parallelism = Math.max(builder.parallelism, 1);
+        continuous = builder.continuous;
+        geometry = new BoxGeometry(experimentSettings);
+        kernel = StepKernel.create(experimentSettings, builder.vectorKernels);
+
+        if (builder.neighbourSkin > 0 && !continuous) {
+            neighbourList = new NeighbourList(builder.neighbourSkin);
+            grid = new CellGrid(experimentSettings.getBoxWidth(), experimentSettings.getBoxHeight(),
+                    2 * experimentSettings.getParticleRadius() + builder.neighbourSkin,
+                    experimentSettings.getParticleCount());
+        }
+
+        if (parallelism > 1) {
+            pool = new ForkJoinPool(parallelism);
+            createStripes();
+        }
+    }
+
+    private void createStripes() {
+        // two stripes per thread, so each colour keeps every thread busy
+        int stripes = Math.min(2 * parallelism, grid.getColumns());
+        stripeStart = new int[stripes + 1];
+        for (int stripe = 0; stripe <= stripes; stripe++) {
+            stripeStart[stripe] = stripe * grid.getColumns() / stripes;
+        }
+    }
+
+    private static double generateDouble(final SplittableRandom random, final double lowerBound,
+                                         final double upperBound) {
         return random.nextDouble() * (upperBound - lowerBound) + lowerBound;
     }
 
     public ExperimentState getLastState() {
         return lastState;
     }
+
+    /**
+     * @return Time of the last calculated step in microseconds, whichever
+     *         of the {@code nextTimeStep} methods was used.
+     */
+    public long getLastTime() {
+        return lastTime;
+    }
+
     public ExperimentSettings getSettings() {
         return experimentSettings;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Stop the threads of the fork-join pool, if parallelism is above one.
+     * The simulator cannot be stepped in parallel afterwards.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Place particles into both chambers as set by
+     * {@link ExperimentSettings#getParticlePlacement()}.
+     *
+     * Random numbers are drawn from {@link RandomStreams} of the experiment
+     * seed: random positions from a stream per chamber, lattice offsets and
+     * velocities from a stream per block of particles. With parallelism
+     * above one, chambers and blocks are placed on the fork-join pool and
+     * the result is the same as with a single thread.
+     *
+     * @return State at the beginning of experiment.
+     * @throws IllegalArgumentException
+     *             If a lattice placement cannot fit the particles of a chamber.
+     * @throws Exception
+     *             If random placement cannot find a free position for a particle.
+     */
     public ExperimentState initialDistribution() throws Exception {
         ExperimentState.Builder experimentStateBuilder = ExperimentState.newBuilder();
-        Particle.Builder particleBuilder = Particle.newBuilder();
-        int particlesNum = experimentSettings.getParticleCountLeft() + experimentSettings.getParticleCountRight();
-        Particle[] particles = new Particle[particlesNum];
-        int counterCup = 20000000;
+        int countLeft = experimentSettings.getParticleCountLeft();
+        int countRight = experimentSettings.getParticleCountRight();
+        Particle[] particles = new Particle[countLeft + countRight];
 
         double leftXLowerBound = 0 + experimentSettings.getParticleRadius();
         double leftXUpperBound = experimentSettings.getBarrierPosX() - experimentSettings.getBarrierWidth() / 2
@@ -37,252 +137,851 @@ public class Simulator {
         double rightXLowerBound = experimentSettings.getBarrierPosX() + experimentSettings.getBarrierWidth() / 2
                 + experimentSettings.getParticleRadius();
         double rightXUpperBound = experimentSettings.getBoxWidth() - experimentSettings.getParticleRadius();
-        double lowerYBound = 0 + experimentSettings.getParticleRadius();
-        double upperYBound = experimentSettings.getBoxHeight() - experimentSettings.getParticleRadius();
-
-        double angle;
-        boolean bTouching;
-        double currX;
-        double currY;
-        double currVx = 0;
-        double currVy = 0;
-        Particle particle;
-        particleBuilder.velocity(currVx, currVy).id(0);
-
-        // left part
-        for (int i = 0; i < experimentSettings.getParticleCountLeft(); i++) {
-            int counter = 0;
-            do {
-                bTouching = false;
-
-                currX = generateDouble(leftXLowerBound, leftXUpperBound);
-                currY = generateDouble(lowerYBound, upperYBound);
-                particle = particleBuilder.position(currX, currY).id(2 * i).build();
 
-                for (int j = 0; j < i; j++) {
-                    if (particles[j].overlaps(particle, experimentSettings.getParticleRadius())) {
-                        bTouching = true;
-                        break;
-                    }
-                }
-                counter++;
-                if (counter > counterCup) {
-                    throw new Exception("Infinite loop");
+        RandomStreams positions = RandomStreams.of(experimentSettings).child(STREAM_POSITIONS);
+
+        if (experimentSettings.getParticlePlacement() == ParticlePlacement.RANDOM) {
+            SplittableRandom left = positions.stream(0);
+            SplittableRandom right = positions.stream(1);
+
+            if (pool == null) {
+                placeParticles(particles, 0, countLeft, leftXLowerBound, leftXUpperBound, 0, left, "left");
+                placeParticles(particles, countLeft, countRight, rightXLowerBound, rightXUpperBound, 1, right,
+                        "right");
+            } else {
+                Future<?> rightTask = pool.submit(() -> {
+                    placeParticles(particles, countLeft, countRight, rightXLowerBound, rightXUpperBound, 1, right,
+                            "right");
+                    return null;
+                });
+
+                placeParticles(particles, 0, countLeft, leftXLowerBound, leftXUpperBound, 0, left, "left");
+                try {
+                    rightTask.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
                 }
-            } while (bTouching);
-
-            angle = generateDouble(0, Math.PI * 2);
-            currVx = experimentSettings.getInitialSpeed() * Math.cos(angle);
-            currVy = experimentSettings.getInitialSpeed() * Math.sin(angle);
-            particle.setVelocity(currVx, currVy);
+            }
+        } else {
+            // check both chambers before placing anything
+            Lattice left = createLattice(leftXLowerBound, leftXUpperBound, countLeft, "left");
+            Lattice right = createLattice(rightXLowerBound, rightXUpperBound, countRight, "right");
 
-            particles[i] = particle;
+            placeParticles(particles, 0, countLeft, left, 0, positions.child(0));
+            placeParticles(particles, countLeft, countRight, right, 1, positions.child(1));
         }
+        setVelocities(particles, RandomStreams.of(experimentSettings).child(STREAM_VELOCITIES));
+
+        return experimentStateBuilder.particles(particles).settings(experimentSettings).time(0).build();
+    }
+
+    /**
+     * Place particles of one chamber at random non-overlapping positions.
+     *
+     * Every candidate is only checked against particles in the neighbouring
+     * cells of an occupancy grid with cells at least a diameter wide, which
+     * accepts and rejects exactly the same candidates as checking against
+     * every placed particle.
+     *
+     * @param particles
+     *            Array to put particles into.
+     * @param first
+     *            Index of the first particle of the chamber in the array.
+     * @param count
+     *            Particle count of the chamber.
+     * @param xLowerBound
+     *            Lowest X position of a particle centre.
+     * @param xUpperBound
+     *            Highest X position of a particle centre.
+     * @param idOffset
+     *            Particle ids are {@code 2 * i + idOffset}.
+     * @param random
+     *            Stream of the chamber.
+     * @param chamber
+     *            Chamber name used in the error message.
+     * @throws Exception
+     *             If a free position could not be found for a particle.
+     */
+    private void placeParticles(final Particle[] particles, final int first, final int count,
+                                final double xLowerBound, final double xUpperBound, final int idOffset,
+                                final SplittableRandom random, final String chamber) throws Exception {
+        Particle.Builder particleBuilder = Particle.newBuilder().velocity(0, 0);
+        int counterCup = 20000000;
+        double particleRadius = experimentSettings.getParticleRadius();
+        double lowerYBound = 0 + particleRadius;
+        double upperYBound = experimentSettings.getBoxHeight() - particleRadius;
 
-        // right part
-        for (int i = 0; i < experimentSettings.getParticleCountRight(); i++) {
+        CellGrid occupancy = new CellGrid(experimentSettings.getBoxWidth(), experimentSettings.getBoxHeight(),
+                2 * particleRadius, count);
+        int[] cellHead = new int[occupancy.getColumns() * occupancy.getRows()];
+        int[] nextInCell = new int[count];
+        Arrays.fill(cellHead, -1);
+
+        for (int i = 0; i < count; i++) {
+            int counter = 0;
+            boolean bTouching;
+            Particle particle;
 
             do {
-                int counter = 0;
-                bTouching = false;
-
-                currX = generateDouble(rightXLowerBound, rightXUpperBound);
-                currY = generateDouble(lowerYBound, upperYBound);
-                particle = particleBuilder.position(currX, currY).id(2 * i + 1).build();
-
-                for (int j = 0; j < i; j++) {
-                    if (particles[experimentSettings.getParticleCountLeft() + j]
-                            .overlaps(particle, experimentSettings.getParticleRadius())) {
-                        bTouching = true;
-                        break;
-                    }
-                }
                 counter++;
                 if (counter > counterCup) {
-                    throw new Exception("Infinite loop");
+                    throw new Exception("Could not place particle " + (i + 1) + " of " + count + " in the "
+                            + chamber + " chamber after " + counterCup + " attempts, the chamber is too dense");
                 }
+
+                double currX = generateDouble(random, xLowerBound, xUpperBound);
+                double currY = generateDouble(random, lowerYBound, upperYBound);
+                particle = particleBuilder.position(currX, currY).id(2 * i + idOffset).build();
+                bTouching = overlapsNeighbours(particle, particles, first, occupancy, cellHead, nextInCell);
             } while (bTouching);
 
-            angle = generateDouble(0, Math.PI * 2);
-            currVx = experimentSettings.getInitialSpeed() * Math.cos(angle);
-            currVy = experimentSettings.getInitialSpeed() * Math.sin(angle);
-            particle.setVelocity(currVx, currVy);
+            particles[first + i] = particle;
+
+            int cell = occupancy.getCell(occupancy.getColumn(particle.getPosX()),
+                    occupancy.getRow(particle.getPosY()));
+            nextInCell[i] = cellHead[cell];
+            cellHead[cell] = i;
+        }
+    }
+
+    private Lattice createLattice(final double xLowerBound, final double xUpperBound, final int count,
+                                  final String chamber) {
+        double particleRadius = experimentSettings.getParticleRadius();
+        boolean hexagonal = experimentSettings.getParticlePlacement() == ParticlePlacement.HEXAGONAL_LATTICE;
 
-            particles[experimentSettings.getParticleCountLeft() + i] = particle;
+        try {
+            return new Lattice(hexagonal, xLowerBound, particleRadius, xUpperBound - xLowerBound,
+                    experimentSettings.getBoxHeight() - 2 * particleRadius, 2 * particleRadius, count);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The " + chamber + " chamber is too small: " + e.getMessage(), e);
         }
+    }
 
-        return experimentStateBuilder.particles(particles).settings(experimentSettings).time(0).build();
+    /**
+     * Place particles of one chamber on evenly spread sites of a lattice,
+     * each moved by a random offset within the lattice jitter.
+     *
+     * @param streams
+     *            Streams of the chamber, one per block of particles.
+     */
+    private void placeParticles(final Particle[] particles, final int first, final int count,
+                                final Lattice lattice, final int idOffset, final RandomStreams streams) {
+        int capacity = lattice.getCapacity();
+
+        forEachBlock(count, (block, blockFirst, blockLast) -> {
+            Particle.Builder particleBuilder = Particle.newBuilder().velocity(0, 0);
+            SplittableRandom random = streams.stream(block);
+
+            for (int i = blockFirst; i < blockLast; i++) {
+                int site = (int) ((long) i * capacity / count);
+                double offsetAngle = generateDouble(random, 0, Math.PI * 2);
+                double offset = lattice.getJitter() * Math.sqrt(random.nextDouble());
+
+                particles[first + i] = particleBuilder
+                        .id(2 * i + idOffset)
+                        .position(lattice.getSiteX(site) + offset * Math.cos(offsetAngle),
+                                lattice.getSiteY(site) + offset * Math.sin(offsetAngle))
+                        .build();
+            }
+        });
+    }
+
+    /**
+     * Give every particle the initial speed in a random direction.
+     *
+     * @param streams
+     *            Streams of velocities, one per block of particles.
+     */
+    private void setVelocities(final Particle[] particles, final RandomStreams streams) {
+        double speed = experimentSettings.getInitialSpeed();
+
+        forEachBlock(particles.length, (block, blockFirst, blockLast) -> {
+            SplittableRandom random = streams.stream(block);
+
+            for (int i = blockFirst; i < blockLast; i++) {
+                double angle = generateDouble(random, 0, Math.PI * 2);
+                particles[i].setVelocity(speed * Math.cos(angle), speed * Math.sin(angle));
+            }
+        });
+    }
+
+    /**
+     * Run the body for every block of {@link #RANDOM_BLOCK} particles, on the
+     * pool when there is one. Blocks do not depend on the number of threads.
+     */
+    private void forEachBlock(final int count, final BlockBody body) {
+        int blocks = (count + RANDOM_BLOCK - 1) / RANDOM_BLOCK;
+        RangeBody range = (firstBlock, lastBlock) -> {
+            for (int block = firstBlock; block < lastBlock; block++) {
+                body.run(block, block * RANDOM_BLOCK, Math.min((block + 1) * RANDOM_BLOCK, count));
+            }
+        };
+
+        if (pool == null) {
+            range.run(0, blocks);
+        } else {
+            pool.invoke(new RangeAction(range, 0, blocks, 1));
+        }
+    }
+
+    private boolean overlapsNeighbours(final Particle particle, final Particle[] particles, final int first,
+                                       final CellGrid occupancy, final int[] cellHead, final int[] nextInCell) {
+        int column = occupancy.getColumn(particle.getPosX());
+        int row = occupancy.getRow(particle.getPosY());
+        int lastColumn = Math.min(column + 1, occupancy.getColumns() - 1);
+        int lastRow = Math.min(row + 1, occupancy.getRows() - 1);
+
+        for (int nColumn = Math.max(column - 1, 0); nColumn <= lastColumn; nColumn++) {
+            for (int nRow = Math.max(row - 1, 0); nRow <= lastRow; nRow++) {
+                for (int j = cellHead[occupancy.getCell(nColumn, nRow)]; j >= 0; j = nextInCell[j]) {
+                    if (particles[first + j].overlaps(particle, experimentSettings.getParticleRadius())) {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        return false;
     }
 
     public static long calculateTimeStep(final ExperimentState experimentState) {
         double speedMax = 0.0;
-        double distanceMax = experimentState.getSettings().getParticleRadius() / 8;
 
         for (Particle particle : experimentState.getParticles()) {
             speedMax = Math.max(particle.getSpeed(), speedMax);
         }
 
+        return calculateTimeStep(experimentState.getSettings(), speedMax);
+    }
+
+    public static long calculateTimeStep(final ParticleStore store, final ExperimentSettings settings) {
+        return calculateTimeStep(settings, store.getMaxSpeed());
+    }
+
+    /**
+     * Step length which splits every frame of the experiment into equal steps.
+     *
+     * @param stepsPerFrame
+     *            Number of steps per frame interval.
+     * @return Step length in microseconds, at least one.
+     */
+    public static long calculateFrameTimeStep(final ExperimentSettings settings, final int stepsPerFrame) {
+        return Math.max(Math.floorDiv(1000000, settings.getFps()) / Math.max(stepsPerFrame, 1), 1);
+    }
+
+    /**
+     * Step length to advance the given particles with. Fixed stepping moves
+     * the fastest particle by an eighth of the radius, see
+     * {@link #calculateTimeStep(ParticleStore, ExperimentSettings)}.
+     * Continuous collision detection splits frames into as few equal steps
+     * as it takes for the fastest particle to move at most eight radii per
+     * step, see {@link #calculateFrameTimeStep(ExperimentSettings, int)}.
+     *
+     * @return Step length in microseconds.
+     */
+    public long getTimeStep(final ParticleStore store) {
+        if (!continuous) {
+            return calculateTimeStep(store, experimentSettings);
+        }
+
+        double speedMax = store.getMaxSpeed();
+        long frame = Math.floorDiv(1000000, experimentSettings.getFps());
+        double distance = speedMax * frame / 1000000.0;
+        double steps = Math.ceil(distance / (CONTINUOUS_STEP_RADII * experimentSettings.getParticleRadius()));
+
+        return calculateFrameTimeStep(experimentSettings, (int) Math.min(Math.max(steps, 1), frame));
+    }
+
+    private static long calculateTimeStep(final ExperimentSettings settings, final double maxSpeed) {
+        double speedMax = maxSpeed;
+        double distanceMax = settings.getParticleRadius() / 8;
+
         if (speedMax == 0) {
-            speedMax = experimentState.getSettings().getInitialSpeed();
+            speedMax = settings.getInitialSpeed();
         }
 
         long deltaTime = Math.round(1000000 * distanceMax / speedMax);
 
         if (deltaTime == 0) {
-            deltaTime = Math.round(1000000.0 / experimentState.getSettings().getFps());
+            deltaTime = Math.round(1000000.0 / settings.getFps());
         }
 
         return deltaTime;
     }
 
-    public ExperimentState nextTimeStep(final ExperimentState experimentState, final long deltaTime) {
-        double x;
-        double y;
-        double vX;
-        double vY;
-        double dX;
-        double dY;
+    /**
+     * Update velocities of two colliding particles.
+     *
+     * @param cos
+     *            X component of the unit vector pointing from the second particle to the first one.
+     * @param sin
+     *            Y component of the same vector.
+     * @param factor
+     *            Speed multiplier applied to both particles after the collision.
+     */
+    static void exchangeVelocities(final double[] velocityX, final double[] velocityY, final int first,
+                                   final int second, final double cos, final double sin, final double factor) {
+        double dVx = velocityX[first] - velocityX[second];
+        double dVy = velocityY[first] - velocityY[second];
+
+        double v1X = dVx * sin * sin - dVy * sin * cos + velocityX[second];
+        double v1Y = dVy * cos * cos - dVx * sin * cos + velocityY[second];
+        double v2X = dVx * cos * cos + dVy * sin * cos + velocityX[second];
+        double v2Y = dVy * sin * sin + dVx * sin * cos + velocityY[second];
+
+        velocityX[first] = v1X * factor;
+        velocityY[first] = v1Y * factor;
+        velocityX[second] = v2X * factor;
+        velocityY[second] = v2Y * factor;
+    }
+
+    private static void collide(final ParticleStore store, final int first, final int second,
+                                final double particleRadius, final double factor) {
+        double[] posX = store.posX;
+        double[] posY = store.posY;
+        double dX = posX[first] - posX[second];
+        double dY = posY[first] - posY[second];
+
+        if (dX * dX + dY * dY >= 4 * particleRadius * particleRadius || !approaches(store, first, second)) {
+            return;
+        }
+
+        double distance = Math.sqrt(dX * dX + dY * dY);
+        double cos = dX / distance;
+        double sin = dY / distance;
+
+        exchangeVelocities(store.velocityX, store.velocityY, first, second, cos, sin, factor);
+
+        // overlapped particles, push the upper one out
+        if (distance < 2 * particleRadius) {
+            double needToMove = 2 * particleRadius - distance;
+
+            if (dY > 0) {
+                posX[first] += needToMove * cos;
+                posY[first] += needToMove * sin;
+            } else {
+                posX[second] -= needToMove * cos;
+                posY[second] -= needToMove * sin;
+            }
+        }
+    }
+
+    /**
+     * Continuous version of {@link #collide(ParticleStore, int, int, double, double)}.
+     *
+     * Positions and velocities of the store are the start of particle paths
+     * through the step, and each path is only followed from
+     * {@code pathStart} until it hits a wall at {@code pathEnd}. Gravity
+     * moves both particles alike, so it does not change their relative
+     * motion. If the paths meet, velocities are exchanged at the moment of
+     * contact and the start positions are shifted, so the new paths run
+     * through the contact point.
+     */
+    private void sweep(final ParticleStore store, final int first, final int second,
+                       final double particleRadius, final double factor, final double duration) {
+        double[] velocityX = store.velocityX;
+        double[] velocityY = store.velocityY;
+        double from = Math.max(pathStart[first], pathStart[second]);
+        double until = Math.min(Math.min(pathEnd[first], pathEnd[second]), duration);
+        double dVx = velocityX[first] - velocityX[second];
+        double dVy = velocityY[first] - velocityY[second];
+        double dX = store.posX[first] - store.posX[second] + dVx * from;
+        double dY = store.posY[first] - store.posY[second] + dVy * from;
+
+        double b = dX * dVx + dY * dVy;
+        if (b >= 0 || from > until) {
+            return;
+        }
+
+        double c = dX * dX + dY * dY - 4 * particleRadius * particleRadius;
+        double time = from;
+
+        if (c > 0) {
+            double discriminant = b * b - (dVx * dVx + dVy * dVy) * c;
+            if (discriminant < 0) {
+                return;
+            }
+
+            time += c / (-b + Math.sqrt(discriminant));
+            if (time > until) {
+                return;
+            }
+        }
+
+        double contactX = dX + dVx * (time - from);
+        double contactY = dY + dVy * (time - from);
+        double distance = Math.sqrt(contactX * contactX + contactY * contactY);
+        if (distance == 0) {
+            return;
+        }
+
+        double g = experimentSettings.getG();
+        double firstVx = velocityX[first];
+        double firstVy = velocityY[first];
+        double secondVx = velocityX[second];
+        double secondVy = velocityY[second];
+
+        // speed loss applies to velocities at the moment of contact
+        velocityY[first] -= g * time;
+        velocityY[second] -= g * time;
+        exchangeVelocities(velocityX, velocityY, first, second, contactX / distance, contactY / distance, factor);
+        velocityY[first] += g * time;
+        velocityY[second] += g * time;
+
+        store.posX[first] += (firstVx - velocityX[first]) * time;
+        store.posY[first] += (firstVy - velocityY[first]) * time;
+        store.posX[second] += (secondVx - velocityX[second]) * time;
+        store.posY[second] += (secondVy - velocityY[second]) * time;
+        startPath(store, first, time, duration);
+        startPath(store, second, time, duration);
+    }
+
+    /**
+     * Follow the path of a particle from the given time of the step until it
+     * hits a wall or the step ends.
+     */
+    private void startPath(final ParticleStore store, final int i, final double time, final double duration) {
+        double g = experimentSettings.getG();
+        double x = store.posX[i] + store.velocityX[i] * time;
+        double y = store.posY[i] + store.velocityY[i] * time - g * time * time / 2;
+        double vY = store.velocityY[i] - g * time;
+        double vX = store.velocityX[i];
+        int wall = geometry.findWall(x, y, vX, vY, duration - time);
+
+        pathStart[i] = time;
+        pathEnd[i] = wall < 0 ? Double.POSITIVE_INFINITY : time + geometry.getHitTime(x, y, vX, vY, wall);
+    }
+
+    /**
+     * Same as {@link Particle#approaches(Particle)} for two particles of a store.
+     */
+    private static boolean approaches(final ParticleStore store, final int first, final int second) {
         double dVx;
         double dVy;
-        double distance;
-        double sin;
-        double cos;
-        double needToMove;
-        double v1X;
-        double v1Y;
-        double v2X;
-        double v2Y;
 
-        double particleRadius = experimentSettings.getParticleRadius();
-        int particlesNum = experimentSettings.getParticleCountLeft() + experimentSettings.getParticleCountRight();
-        double factor = Math.sqrt(1 - experimentSettings.getSpeedLoss());
-        ExperimentState.Builder experimentStateBuilder = ExperimentState.newBuilder();
-        Particle[] particles = experimentState.getParticles();
-        Particle[] movedParticles =  new Particle[particles.length];
-
-        double boxLeftSideBound = 0;
-        double boxRightSideBound = experimentSettings.getBoxWidth();
-        double boxTopBound = experimentSettings.getBoxHeight();
-        double boxBottomBound = 0;
-        double boxLeftSideParticleBound = boxLeftSideBound + particleRadius;
-        double boxRightSideParticleBound = boxRightSideBound - particleRadius;
-        double boxTopParticleBound = boxTopBound - particleRadius;
-        double boxBottomParticleBound = boxBottomBound + particleRadius;
-
-        double holeLeftSideBound = experimentSettings.getBarrierPosX() - experimentSettings.getBarrierWidth() / 2;
-        double holeRightSideBound = experimentSettings.getBarrierPosX() + experimentSettings.getBarrierWidth() / 2;
-        double holeTopBound = experimentSettings.getHolePosY() + experimentSettings.getHoleHeight() / 2;
-        double holeBottomBound = experimentSettings.getHolePosY() - experimentSettings.getHoleHeight() / 2;
-        double holeLeftSideParticleBound = holeLeftSideBound - particleRadius;
-        double holeRightSideParticleBound = holeRightSideBound + particleRadius;
-        double holeTopParticleBound = holeTopBound - particleRadius;
-        double holeBottomParticleBound = holeBottomBound + particleRadius;
-
-        // move particles
-        for (int i = 0; i < particles.length; i++) {
-            movedParticles[i] = new Particle(particles[i]).move(deltaTime, experimentSettings.getG());
-        }
-
-        // particle's collision
-        Arrays.sort(movedParticles,
-                (p1, p2) -> { return (int) Math.signum(p1.getPosY() - p2.getPosY()); });
-
-        for (int i = 0; i < particlesNum; i++) {
-            for (int j = i + 1; j < particlesNum; j++) {
-                if (movedParticles[j].getPosY() - movedParticles[i].getPosY() > 2 * particleRadius) break;
-                if (movedParticles[i].overlaps(movedParticles[j], particleRadius)
-                        && movedParticles[i].approaches(movedParticles[j])) {
-                    dX = movedParticles[i].getPosX() - movedParticles[j].getPosX();
-                    dY = movedParticles[i].getPosY() - movedParticles[j].getPosY();
-                    distance = Math.sqrt(dX * dX + dY * dY);
-                    cos = dX / distance;
-                    sin = dY / distance;
-                    dVx = movedParticles[i].getVelocityX() - movedParticles[j].getVelocityX();
-                    dVy = movedParticles[i].getVelocityY() - movedParticles[j].getVelocityY();
-
-                    v1X = dVx * sin * sin - dVy * sin * cos + movedParticles[j].getVelocityX();
-                    v1Y = dVy * cos * cos - dVx * sin * cos + movedParticles[j].getVelocityY();
-                    v2X = dVx * cos * cos + dVy * sin * cos + movedParticles[j].getVelocityX();
-                    v2Y = dVy * sin * sin + dVx * sin * cos + movedParticles[j].getVelocityY();
-
-                    movedParticles[i] = movedParticles[i].setVelocity(v1X * factor, v1Y * factor);
-                    movedParticles[j] = movedParticles[j].setVelocity(v2X * factor, v2Y * factor);
-
-                    // overlapped particles
-                    if (distance * distance < 4 * particleRadius * particleRadius) {
-                        needToMove = 2 * particleRadius - distance;
-
-                        if (dY > 0) {
-                            movedParticles[i] = movedParticles[i]
-                                    .setPosition(movedParticles[i].getPosX() + needToMove * cos,
-                                                 movedParticles[i].getPosY() + needToMove * sin);
-                        } else {
-                            movedParticles[j] = movedParticles[j]
-                                    .setPosition(movedParticles[j].getPosX() - needToMove * cos,
-                                                 movedParticles[j].getPosY() - needToMove * sin);
-                        }
-                    }
+        if (store.posX[first] < store.posX[second]) {
+            dVx = store.velocityX[first] - store.velocityX[second];
+        } else {
+            dVx = store.velocityX[second] - store.velocityX[first];
+        }
+
+        if (store.posY[first] < store.posY[second]) {
+            dVy = store.velocityY[first] - store.velocityY[second];
+        } else {
+            dVy = store.velocityY[second] - store.velocityY[first];
+        }
+
+        return dVx > 0 || dVy > 0;
+    }
+
+    /**
+     * Collide particles of a cell with each other and with particles of the
+     * forward half of its 3x3 neighbourhood: the cell above and the three
+     * cells of the next column. Visiting every cell this way tests each pair
+     * of neighbouring cells exactly once.
+     */
+    private void resolveCellCollisions(final ParticleStore store, final int column, final int row,
+                                       final double particleRadius, final double factor,
+                                       final double duration) {
+        int cell = grid.getCell(column, row);
+        int start = grid.getCellStart(cell);
+        int end = grid.getCellEnd(cell);
+
+        if (start == end) {
+            return;
+        }
+
+        boolean hasNextRow = row + 1 < grid.getRows();
+        boolean hasNextColumn = column + 1 < grid.getColumns();
+        int firstNeighbour = hasNextColumn ? grid.getCell(column + 1, Math.max(row - 1, 0)) : 0;
+        int lastNeighbour = hasNextColumn ? grid.getCell(column + 1, Math.min(row + 1, grid.getRows() - 1)) : -1;
+
+        for (int k = start; k < end; k++) {
+            int i = grid.getParticle(k);
+
+            for (int m = k + 1; m < end; m++) {
+                collidePair(store, i, grid.getParticle(m), particleRadius, factor, duration);
+            }
+
+            if (hasNextRow) {
+                for (int m = grid.getCellStart(cell + 1); m < grid.getCellEnd(cell + 1); m++) {
+                    collidePair(store, i, grid.getParticle(m), particleRadius, factor, duration);
+                }
+            }
+
+            // cells of the next column are stored one after another
+            for (int neighbour = firstNeighbour; neighbour <= lastNeighbour; neighbour++) {
+                for (int m = grid.getCellStart(neighbour); m < grid.getCellEnd(neighbour); m++) {
+                    collidePair(store, i, grid.getParticle(m), particleRadius, factor, duration);
                 }
             }
         }
+    }
+
+    private void collidePair(final ParticleStore store, final int first, final int second,
+                             final double particleRadius, final double factor, final double duration) {
+        if (continuous) {
+            sweep(store, first, second, particleRadius, factor, duration);
+        } else {
+            collide(store, first, second, particleRadius, factor);
+        }
+    }
+
+    public ExperimentState nextTimeStep(final ExperimentState experimentState, final long deltaTime) {
+        ParticleStore from = ParticleStore.of(experimentState);
+        ParticleStore to = new ParticleStore(from.size());
+
+        nextTimeStep(from, to, deltaTime);
+
+        lastState = to.toState(experimentSettings);
+        return lastState;
+    }
 
-        // collision with geometry
-        for (Particle particle : movedParticles) {
-            x = particle.getPosX();
-            y = particle.getPosY();
-            vX = particle.getVelocityX();
-            vY = particle.getVelocityY();
-
-            if (y > boxTopParticleBound && vY > 0) {
-                // box top
-                y = boxTopParticleBound;
-                vY = -vY - experimentSettings.getSpeedDeltaTop();
-            } else if (y < boxBottomParticleBound && vY < 0) {
-                // box bottom
-                y = boxBottomParticleBound;
-                vY = -vY + experimentSettings.getSpeedDeltaBottom();
+    /**
+     * Allocation-free simulation step. Particles of {@code from} are moved,
+     * collided and written to {@code to}, which is expected to be another
+     * store of the same size. The source store is left untouched, so callers
+     * can keep two stores and swap them after every step.
+     *
+     * With neighbour lists, the grid and the lists are only rebuilt once a
+     * particle may have moved by half of the skin since the last rebuild.
+     * Other steps collide the listed pairs only.
+     *
+     * With parallelism above one, particles are moved and collided with the
+     * geometry in chunks on a fork-join pool. Pair collisions are resolved in
+     * vertical stripes of grid columns: even stripes first, then odd ones.
+     * A stripe only touches particles of its own columns and the first
+     * column of the next stripe, so stripes of the same colour never share
+     * a particle and the result does not depend on thread scheduling.
+     *
+     * With continuous collision detection, collisions are found along the
+     * paths particles take during the step instead of by overlaps at its
+     * end, so a step may move particles by several radii without them
+     * passing through each other or through walls. Grid cells grow to cover
+     * the distance particles can close in a step.
+     *
+     * Particles are written to {@code to} in the cell order of the previous
+     * step when {@code from} is the store that step was written to, so
+     * neighbours lie close together in memory. The order of particles in a
+     * store is therefore not stable, use particle ids to tell them apart.
+     *
+     * The speed of the fastest particle is recorded in {@code to} by the
+     * final pass over the particles, so the suggested length of the next
+     * step comes without another pass.
+     *
+     * @param from
+     *            Particles at the current moment of time.
+     * @param to
+     *            Store to put particles at the next moment of time into.
+     * @param deltaTime
+     *            Step length in microseconds.
+     * @return Suggested length of the next step, see {@link #getTimeStep(ParticleStore)}.
+     */
+    public long nextTimeStep(final ParticleStore from, final ParticleStore to, final long deltaTime) {
+        int count = from.size();
+        double deltaTimeSec = deltaTime / 1000000.0;
+
+        if (continuous) {
+            coverSweptDistance(from, deltaTimeSec);
+            if (pathStart.length < count) {
+                pathStart = new double[count];
+                pathEnd = new double[count];
             }
+        }
 
-            if (x < boxLeftSideParticleBound && vX < 0) {
-                // box left side
-                x = boxLeftSideParticleBound;
-                vX = -vX + experimentSettings.getSpeedDeltaSides();
-            } else if (x > boxRightSideParticleBound && vX > 0) {
-                // box right side
-                x = boxRightSideParticleBound;
-                vX = -vX - experimentSettings.getSpeedDeltaSides();
-            } else if (x > holeLeftSideParticleBound && x < holeRightSideParticleBound) {
-                // inside hole
-                if (x > holeLeftSideBound && x < holeRightSideBound) {
-                    if (y > holeTopParticleBound && vY > 0) {
-                        // hole top
-                        y = holeTopParticleBound;
-                        vY = -vY - experimentSettings.getSpeedDeltaTop();
-                    } else if (y < holeBottomParticleBound && vY < 0) {
-                        // hole bottom
-                        y = holeBottomParticleBound;
-                        vY = -vY + experimentSettings.getSpeedDeltaBottom();
-                    }
-                } else if (y > holeTopBound || y < holeBottomBound) {
-                    // around left barrier side
-                    if (x < experimentSettings.getBarrierPosX() && vX > 0) {
-                        x = holeLeftSideParticleBound;
-                        vX = -vX - experimentSettings.getSpeedDeltaSides();
-                    } else if (x > experimentSettings.getBarrierPosX() && vX < 0) {
-                        // around right barrier side
-                        x = holeRightSideParticleBound;
-                        vX = -vX + experimentSettings.getSpeedDeltaSides();
+        // continuous collisions move particles along with geometry collisions
+        long moveTime = continuous ? 0 : deltaTime;
+        boolean layoutKept = from == orderedStore && grid.isOrdered(count);
+        boolean rebuild = neighbourList == null || !layoutKept
+                || neighbourList.isStale(from, deltaTimeSec, experimentSettings.getG());
+        // particles may only be reordered along with the grid
+        boolean ordered = layoutKept && rebuild;
+
+        if (pool == null) {
+            move(from, to, 0, count, moveTime, ordered);
+            if (continuous) {
+                startPaths(to, 0, count, deltaTimeSec);
+            }
+            if (rebuild) {
+                rebuildGrid(to);
+            }
+            resolveCollisions(to, 0, grid.getColumns(), deltaTimeSec);
+            to.setMaxSpeedSquared(collideWithGeometry(to, 0, count, deltaTimeSec));
+        } else {
+            int grain = Math.max(count / (4 * parallelism), MIN_PARALLEL_CHUNK);
+
+            pool.invoke(new RangeAction((first, last) -> {
+                move(from, to, first, last, moveTime, ordered);
+                if (continuous) {
+                    startPaths(to, first, last, deltaTimeSec);
+                }
+            }, 0, count, grain));
+            if (rebuild) {
+                rebuildGrid(to);
+            }
+            for (int colour = 0; colour < 2; colour++) {
+                final int firstStripe = colour;
+                int stripes = (stripeStart.length - colour) / 2;
+
+                pool.invoke(new RangeAction((first, last) -> {
+                    for (int k = first; k < last; k++) {
+                        int stripe = firstStripe + 2 * k;
+                        resolveCollisions(to, stripeStart[stripe], stripeStart[stripe + 1], deltaTimeSec);
                     }
+                }, 0, stripes, 1));
+            }
+            // the maximum does not depend on the order chunks finish in
+            speedSquaredMax.reset();
+            pool.invoke(new RangeAction((first, last) -> speedSquaredMax.accumulate(
+                    collideWithGeometry(to, first, last, deltaTimeSec)), 0, count, grain));
+            to.setMaxSpeedSquared(speedSquaredMax.get());
+        }
+
+        orderedStore = to;
+        to.setTime(from.getTime() + deltaTime);
+        setLastTime(to.getTime());
+
+        return getTimeStep(to);
+    }
+
+    /**
+     * Copy particles into another store in the order the next
+     * {@link #nextTimeStep(ParticleStore, ParticleStore, long)} call would
+     * read them in. Stepping the copy with a new simulator of the same
+     * settings then gives the same particles as stepping the original store
+     * with this one, so a saved copy lets a simulation be resumed. This holds
+     * for fixed steps without neighbour lists or continuous collisions, other
+     * modes rebuild their state and continue with equally valid but not
+     * bit-identical results.
+     */
+    public void copyForResume(final ParticleStore store, final ParticleStore target) {
+        if (store != orderedStore || !grid.isOrdered(store.size())) {
+            target.copyFrom(store);
+            return;
+        }
+
+        for (int i = 0; i < store.size(); i++) {
+            int source = grid.getParticle(i);
+
+            target.id[i] = store.id[source];
+            target.posX[i] = store.posX[source];
+            target.posY[i] = store.posY[source];
+            target.velocityX[i] = store.velocityX[source];
+            target.velocityY[i] = store.velocityY[source];
+        }
+        target.setTime(store.getTime());
+        target.setMaxSpeedSquared(Double.NaN);
+    }
+
+    private void rebuildGrid(final ParticleStore store) {
+        grid.rebuild(store);
+        if (neighbourList != null) {
+            neighbourList.build(store, grid, 2 * experimentSettings.getParticleRadius());
+        }
+    }
+
+    void setLastTime(final long time) {
+        lastTime = time;
+    }
+
+    /**
+     * @param ordered
+     *            Gather particles in the grid order, which was built for {@code from}.
+     */
+    private void move(final ParticleStore from, final ParticleStore to, final int first, final int last,
+                      final long deltaTime, final boolean ordered) {
+        kernel.move(from, to, ordered ? grid.getOrder() : null, first, last, deltaTime / 1000000.0);
+    }
+
+    private void startPaths(final ParticleStore store, final int first, final int last, final double duration) {
+        for (int i = first; i < last; i++) {
+            startPath(store, i, 0, duration);
+        }
+    }
+
+    /**
+     * Make sure grid cells are wide enough for the pairs which can meet
+     * within the step to lie in the same or adjacent cells.
+     */
+    private void coverSweptDistance(final ParticleStore store, final double duration) {
+        double speedMax = store.getMaxSpeed();
+
+        // collisions within the step may speed particles up a little, hence the margin
+        double distance = 2 * experimentSettings.getParticleRadius() + 2.5 * speedMax * duration;
+
+        if (!grid.covers(distance)) {
+            grid = new CellGrid(experimentSettings.getBoxWidth(), experimentSettings.getBoxHeight(),
+                    1.25 * distance, store.size());
+            orderedStore = null;
+            if (pool != null) {
+                createStripes();
+            }
+        }
+    }
+
+    private void resolveCollisions(final ParticleStore store, final int firstColumn, final int lastColumn,
+                                   final double duration) {
+        double particleRadius = experimentSettings.getParticleRadius();
+        double factor = Math.sqrt(1 - experimentSettings.getSpeedLoss());
+
+        if (neighbourList != null) {
+            // pairs are listed under grid positions, which are ordered by column
+            int last = grid.getCellStart(grid.getCell(lastColumn, 0));
+
+            for (int position = grid.getCellStart(grid.getCell(firstColumn, 0)); position < last; position++) {
+                int i = grid.getParticle(position);
+
+                for (int entry = neighbourList.getStart(position); entry < neighbourList.getEnd(position); entry++) {
+                    collide(store, i, neighbourList.getNeighbour(entry), particleRadius, factor);
                 }
             }
-            particle.setPosition(x, y).setVelocity(vX, vY);
+            return;
         }
 
-        lastState = experimentStateBuilder
-                    .particles(movedParticles)
-                    .settings(experimentSettings)
-                    .time(experimentState.getTime() + deltaTime)
-                    .build();
-        return lastState;
+        for (int column = firstColumn; column < lastColumn; column++) {
+            for (int row = 0; row < grid.getRows(); row++) {
+                resolveCellCollisions(store, column, row, particleRadius, factor, duration);
+            }
+        }
+    }
+
+    /**
+     * @return Squared speed of the fastest particle in the range after the collisions.
+     */
+    private double collideWithGeometry(final ParticleStore store, final int first, final int last,
+                                       final double duration) {
+        if (continuous) {
+            double g = experimentSettings.getG();
+
+            for (int i = first; i < last; i++) {
+                // paths are only valid from their start, move there before following walls
+                double time = pathStart[i];
+                store.posX[i] += store.velocityX[i] * time;
+                store.posY[i] += store.velocityY[i] * time - g * time * time / 2;
+                store.velocityY[i] -= g * time;
+                geometry.sweep(store.posX, store.posY, store.velocityX, store.velocityY, i, duration - time);
+            }
+        }
+
+        return kernel.collideWithWalls(store, first, last);
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private ExperimentSettings settings;
+        private int parallelism = 1;
+        private boolean eventDriven;
+        private boolean continuous;
+        private double neighbourSkin;
+        private boolean vectorKernels;
+
+        public Builder settings(final ExperimentSettings settings) {
+            this.settings = settings;
+
+            return this;
+        }
+
+        /**
+         * @param threads
+         *            Number of threads a step is split between, one by default.
+         *            Results are reproducible for the same seed and thread count.
+         */
+        public Builder parallelism(final int threads) {
+            parallelism = threads;
+
+            return this;
+        }
+
+        /**
+         * @param eventDriven
+         *            Use {@link EventDrivenSimulator} instead of fixed time stepping.
+         */
+        public Builder eventDriven(final boolean eventDriven) {
+            this.eventDriven = eventDriven;
+
+            return this;
+        }
+
+        /**
+         * @param continuous
+         *            Find collisions along particle paths within a step, so
+         *            steps are not limited by the particle radius.
+         */
+        public Builder continuousCollisions(final boolean continuous) {
+            this.continuous = continuous;
+
+            return this;
+        }
+
+        /**
+         * @param skin
+         *            Keep Verlet neighbour lists of pairs closer than the
+         *            particle diameter plus the skin, and only rebuild them
+         *            once a particle may have moved by half of the skin.
+         *            Zero (the default) rebuilds the grid every step. Not
+         *            used with continuous collisions.
+         */
+        public Builder neighbourSkin(final double skin) {
+            neighbourSkin = skin;
+
+            return this;
+        }
+
+        /**
+         * @param vector
+         *            Move particles and collide them with walls using the
+         *            vector API when the runtime provides it, otherwise the
+         *            scalar kernel is used. Off by default, results are the
+         *            same either way.
+         */
+        public Builder vectorKernels(final boolean vector) {
+            vectorKernels = vector;
+
+            return this;
+        }
+
+        public Simulator build() {
+            return eventDriven ? new EventDrivenSimulator(this) : new Simulator(this);
+        }
+    }
+
+    /**
+     * Fork-join action running a body over a range of indices split into chunks.
+     */
+    private static final class RangeAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeBody body;
+        private final int first;
+        private final int last;
+        private final int grain;
+
+        RangeAction(final RangeBody body, final int first, final int last, final int grain) {
+            this.body = body;
+            this.first = first;
+            this.last = last;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first <= grain) {
+                body.run(first, last);
+            } else {
+                int middle = (first + last) >>> 1;
+                invokeAll(new RangeAction(body, first, middle, grain), new RangeAction(body, middle, last, grain));
+            }
+        }
+    }
+
+    private interface RangeBody {
+        void run(int first, int last);
+    }
+
+    private interface BlockBody {
+        void run(int block, int first, int last);
     }
 }
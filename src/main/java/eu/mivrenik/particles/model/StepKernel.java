@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.model;
+
+/**
+ * Per-particle arithmetic of a simulation step: ballistic motion and
+ * collisions with the box walls, the barrier and the hole.
+ *
+ * Every particle is handled independently of others, so the work may be
+ * split into arbitrary ranges. This implementation processes one particle
+ * at a time, {@link #create(ExperimentSettings, boolean)} may return a
+ * subclass which handles several particles per instruction when the
+ * runtime supports it. Every implementation gives identical results.
+ */
+class StepKernel {
+    private static final String VECTOR_KERNEL = "eu.mivrenik.particles.model.VectorStepKernel";
+
+    protected final double g;
+    protected final double speedDeltaTop;
+    protected final double speedDeltaBottom;
+    protected final double speedDeltaSides;
+    protected final double barrierPosX;
+    protected final double boxLeftSideParticleBound;
+    protected final double boxRightSideParticleBound;
+    protected final double boxTopParticleBound;
+    protected final double boxBottomParticleBound;
+    protected final double holeLeftSideBound;
+    protected final double holeRightSideBound;
+    protected final double holeTopBound;
+    protected final double holeBottomBound;
+    protected final double holeLeftSideParticleBound;
+    protected final double holeRightSideParticleBound;
+    protected final double holeTopParticleBound;
+    protected final double holeBottomParticleBound;
+
+    StepKernel(final ExperimentSettings experimentSettings) {
+        double particleRadius = experimentSettings.getParticleRadius();
+        double boxLeftSideBound = 0;
+        double boxRightSideBound = experimentSettings.getBoxWidth();
+        double boxTopBound = experimentSettings.getBoxHeight();
+        double boxBottomBound = 0;
+
+        g = experimentSettings.getG();
+        speedDeltaTop = experimentSettings.getSpeedDeltaTop();
+        speedDeltaBottom = experimentSettings.getSpeedDeltaBottom();
+        speedDeltaSides = experimentSettings.getSpeedDeltaSides();
+        barrierPosX = experimentSettings.getBarrierPosX();
+        boxLeftSideParticleBound = boxLeftSideBound + particleRadius;
+        boxRightSideParticleBound = boxRightSideBound - particleRadius;
+        boxTopParticleBound = boxTopBound - particleRadius;
+        boxBottomParticleBound = boxBottomBound + particleRadius;
+
+        holeLeftSideBound = experimentSettings.getBarrierPosX() - experimentSettings.getBarrierWidth() / 2;
+        holeRightSideBound = experimentSettings.getBarrierPosX() + experimentSettings.getBarrierWidth() / 2;
+        holeTopBound = experimentSettings.getHolePosY() + experimentSettings.getHoleHeight() / 2;
+        holeBottomBound = experimentSettings.getHolePosY() - experimentSettings.getHoleHeight() / 2;
+        holeLeftSideParticleBound = holeLeftSideBound - particleRadius;
+        holeRightSideParticleBound = holeRightSideBound + particleRadius;
+        holeTopParticleBound = holeTopBound - particleRadius;
+        holeBottomParticleBound = holeBottomBound + particleRadius;
+    }
+
+    /**
+     * @param vector
+     *            Prefer the kernel built on the vector API. It is only
+     *            available when the application was built with the
+     *            {@code vector} profile and runs with the
+     *            {@code jdk.incubator.vector} module, otherwise this
+     *            implementation is used.
+     */
+    static StepKernel create(final ExperimentSettings experimentSettings, final boolean vector) {
+        if (vector) {
+            try {
+                return (StepKernel) Class.forName(VECTOR_KERNEL)
+                        .getDeclaredConstructor(ExperimentSettings.class)
+                        .newInstance(experimentSettings);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // not built or the module is not present at runtime, fall back to the scalar kernel
+            }
+        }
+
+        return new StepKernel(experimentSettings);
+    }
+
+    /**
+     * @return True if the kernel processes several particles at once.
+     */
+    boolean isVectorized() {
+        return false;
+    }
+
+    /**
+     * Move particles along their ballistic trajectories.
+     *
+     * @param order
+     *            Index of the source particle for every target position, or
+     *            null to keep the order of {@code from}.
+     * @param deltaTime
+     *            Step length in seconds.
+     */
+    void move(final ParticleStore from, final ParticleStore to, final int[] order, final int first, final int last,
+              final double deltaTime) {
+        for (int i = first; i < last; i++) {
+            int source = order != null ? order[i] : i;
+
+            to.id[i] = from.id[source];
+            to.posX[i] = from.posX[source] + from.velocityX[source] * deltaTime;
+            to.posY[i] = from.posY[source] + from.velocityY[source] * deltaTime - g * deltaTime * deltaTime / 2;
+            to.velocityX[i] = from.velocityX[source];
+            to.velocityY[i] = from.velocityY[source] - g * deltaTime;
+        }
+    }
+
+    /**
+     * Push particles which overlap the walls back and reflect them.
+     *
+     * @return Squared speed of the fastest particle in the range after the collisions.
+     */
+    double collideWithWalls(final ParticleStore store, final int first, final int last) {
+        double speedSquaredMax = 0.0;
+
+        for (int i = first; i < last; i++) {
+            double x = store.posX[i];
+            double y = store.posY[i];
+            double vX = store.velocityX[i];
+            double vY = store.velocityY[i];
+
+            if (y > boxTopParticleBound && vY > 0) {
+                // box top
+                y = boxTopParticleBound;
+                vY = -vY - speedDeltaTop;
+            } else if (y < boxBottomParticleBound && vY < 0) {
+                // box bottom
+                y = boxBottomParticleBound;
+                vY = -vY + speedDeltaBottom;
+            }
+
+            if (x < boxLeftSideParticleBound && vX < 0) {
+                // box left side
+                x = boxLeftSideParticleBound;
+                vX = -vX + speedDeltaSides;
+            } else if (x > boxRightSideParticleBound && vX > 0) {
+                // box right side
+                x = boxRightSideParticleBound;
+                vX = -vX - speedDeltaSides;
+            } else if (x > holeLeftSideParticleBound && x < holeRightSideParticleBound) {
+                // inside hole
+                if (x > holeLeftSideBound && x < holeRightSideBound) {
+                    if (y > holeTopParticleBound && vY > 0) {
+                        // hole top
+                        y = holeTopParticleBound;
+                        vY = -vY - speedDeltaTop;
+                    } else if (y < holeBottomParticleBound && vY < 0) {
+                        // hole bottom
+                        y = holeBottomParticleBound;
+                        vY = -vY + speedDeltaBottom;
+                    }
+                } else if (y > holeTopBound || y < holeBottomBound) {
+                    // around left barrier side
+                    if (x < barrierPosX && vX > 0) {
+                        x = holeLeftSideParticleBound;
+                        vX = -vX - speedDeltaSides;
+                    } else if (x > barrierPosX && vX < 0) {
+                        // around right barrier side
+                        x = holeRightSideParticleBound;
+                        vX = -vX + speedDeltaSides;
+                    }
+                }
+            }
+            store.posX[i] = x;
+            store.posY[i] = y;
+            store.velocityX[i] = vX;
+            store.velocityY[i] = vY;
+            speedSquaredMax = Math.max(vX * vX + vY * vY, speedSquaredMax);
+        }
+
+        return speedSquaredMax;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.batch;
+
+import eu.mivrenik.particles.io.ExperimentLoader;
+import eu.mivrenik.particles.io.SimulationWriter;
+import eu.mivrenik.particles.model.ExperimentSettings;
+import eu.mivrenik.particles.model.ParticleStore;
+import eu.mivrenik.particles.model.Simulator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EnsembleRunnerTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void runWritesOneFilePerSeed() throws Exception {
+        ExperimentSettings settings = ExperimentSettings.newBuilder()
+                .boxSize(100.0f, 100.0f)
+                .barrier(45.0f, 10.0f)
+                .hole(45.0f, 10.0f)
+                .initialSpeed(1.0f)
+                .speedDelta(0.05f, 0.05f, 0.05f)
+                .speedLoss(0.005f)
+                .particleRadius(0.1f)
+                .particleCount(10, 10)
+                .fps(30)
+                .g(9.8f)
+                .duration(1)
+                .seed(1)
+                .build();
+        File directory = tmpFolder.newFolder();
+        EnsembleRunner runner = EnsembleRunner.newBuilder()
+                .settings(settings)
+                .seeds(100, 3)
+                .outputDirectory(directory)
+                .threads(2)
+                .build();
+
+        EnsembleReport report = runner.run();
+
+        assertEquals(3, report.getRunCount());
+        assertTrue(report.getParticleSteps() > 0);
+        assertTrue(report.getParticleStepsPerSecond() > 0);
+        for (int seed = 100; seed < 103; seed++) {
+            ExperimentLoader loader = new ExperimentLoader(runner.getOutputFile(seed));
+            assertEquals(ExperimentSettings.newBuilder(settings).seed(seed).build(), loader.getExperimentSettings());
+            assertEquals(30 * 60, loader.getStateCount());
+            loader.close();
+        }
+
+        // a run of the ensemble is the same as a run on its own
+        File single = tmpFolder.newFile("single.bin");
+        new SimulationWriter(new Simulator(ExperimentSettings.newBuilder(settings).seed(101).build()), single)
+                .saveSimulation();
+        assertArrayEquals(Files.readAllBytes(single.toPath()), Files.readAllBytes(runner.getOutputFile(101).toPath()));
+    }
+
+    @Test
+    public void interruptedRunIsNotCached() throws Exception {
+        ExperimentSettings settings = ExperimentSettings.newBuilder()
+                .boxSize(100.0f, 100.0f)
+                .barrier(45.0f, 10.0f)
+                .hole(45.0f, 10.0f)
+                .initialSpeed(1.0f)
+                .speedDelta(0.05f, 0.05f, 0.05f)
+                .speedLoss(0.005f)
+                .particleRadius(0.1f)
+                .particleCount(10, 10)
+                .fps(30)
+                .g(9.8f)
+                .duration(1)
+                .seed(1)
+                .build();
+        ResultCache cache = new ResultCache(tmpFolder.newFolder(), Long.MAX_VALUE);
+        File outputFile = new File(tmpFolder.getRoot(), "interrupted.bin");
+
+        Thread.currentThread().interrupt();
+        try {
+            EnsembleRunner.simulate(settings, outputFile, cache);
+            fail("Interrupted run has to fail");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            Thread.interrupted();
+        }
+
+        assertFalse(cache.get(settings, outputFile));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void resumedRunCountsItsOwnSteps() throws Exception {
+        ExperimentSettings settings = ExperimentSettings.newBuilder()
+                .boxSize(100.0f, 100.0f)
+                .barrier(45.0f, 10.0f)
+                .hole(45.0f, 10.0f)
+                .initialSpeed(1.0f)
+                .speedDelta(0.05f, 0.05f, 0.05f)
+                .speedLoss(0.005f)
+                .particleRadius(0.1f)
+                .particleCount(10, 10)
+                .fps(30)
+                .g(9.8f)
+                .duration(1)
+                .seed(7)
+                .build();
+        EnsembleRunner runner = EnsembleRunner.newBuilder()
+                .settings(settings)
+                .seeds(7, 1)
+                .outputDirectory(tmpFolder.newFolder())
+                .build();
+        SimulationWriter full = new SimulationWriter(new Simulator(settings), tmpFolder.newFile("full.bin"));
+        full.saveSimulation();
+
+        Simulator crashing = new Simulator(settings) {
+            private int steps;
+
+            @Override
+            public long nextTimeStep(final ParticleStore from, final ParticleStore to, final long deltaTime) {
+                if (++steps > 3000) {
+                    throw new IllegalStateException("Crash");
+                }
+                return super.nextTimeStep(from, to, deltaTime);
+            }
+        };
+        SimulationWriter writer = new SimulationWriter(crashing, runner.getOutputFile(7));
+        writer.setCheckpointInterval(1);
+        try {
+            writer.saveSimulation();
+            fail("Simulation has to crash");
+        } catch (IllegalStateException e) {
+            assertTrue(writer.getCheckpointFile().exists());
+        }
+
+        // the checkpoint was saved within the 3000 steps before the crash
+        long particleSteps = runner.run().getParticleSteps();
+        assertTrue(particleSteps < full.getStepCount() * settings.getParticleCount());
+        assertTrue(particleSteps >= (full.getStepCount() - 3000) * settings.getParticleCount());
+        assertArrayEquals(Files.readAllBytes(tmpFolder.getRoot().toPath().resolve("full.bin")),
+                Files.readAllBytes(runner.getOutputFile(7).toPath()));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.batch;
+
+import eu.mivrenik.particles.io.SimulationWriter;
+import eu.mivrenik.particles.model.ExperimentSettings;
+import eu.mivrenik.particles.model.Simulator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private final ExperimentSettings settings = ExperimentSettings.newBuilder()
+            .boxSize(100.0f, 100.0f)
+            .barrier(45.0f, 10.0f)
+            .hole(45.0f, 10.0f)
+            .initialSpeed(1.0f)
+            .speedDelta(0.05f, 0.05f, 0.05f)
+            .speedLoss(0.005f)
+            .particleRadius(0.1f)
+            .particleCount(10, 10)
+            .fps(30)
+            .g(9.8f)
+            .duration(1)
+            .seed(1)
+            .build();
+
+    @Test
+    public void keyDependsOnEverySetting() throws Exception {
+        assertEquals(ResultCache.key(settings), ResultCache.key(ExperimentSettings.newBuilder(settings).build()));
+        assertNotEquals(ResultCache.key(settings), ResultCache.key(ExperimentSettings.newBuilder(settings)
+                .seed(2).build()));
+        assertNotEquals(ResultCache.key(settings), ResultCache.key(ExperimentSettings.newBuilder(settings)
+                .g(9.81f).build()));
+    }
+
+    @Test
+    public void getEvictsLeastRecentlyUsed() throws Exception {
+        ExperimentSettings[] runs = new ExperimentSettings[3];
+        File[] files = new File[runs.length];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = ExperimentSettings.newBuilder(settings).seed(i).build();
+            files[i] = tmpFolder.newFile();
+            Files.write(files[i].toPath(), new byte[100]);
+        }
+        ResultCache cache = new ResultCache(tmpFolder.newFolder(), 250);
+        File target = new File(tmpFolder.getRoot(), "target.bin");
+
+        cache.put(runs[0], files[0]);
+        cache.put(runs[1], files[1]);
+        assertTrue(cache.get(runs[0], target));
+        cache.put(runs[2], files[2]);
+
+        assertEquals(200, cache.getSize());
+        assertTrue(cache.get(runs[0], target));
+        assertFalse(cache.get(runs[1], target));
+        assertTrue(cache.get(runs[2], target));
+    }
+
+    @Test
+    public void simulatingIntoTargetLeavesEntryIntact() throws Exception {
+        File source = tmpFolder.newFile();
+        Files.write(source.toPath(), new byte[] {1, 2, 3});
+        ResultCache cache = new ResultCache(tmpFolder.newFolder(), Long.MAX_VALUE);
+        File target = new File(tmpFolder.getRoot(), "target.bin");
+
+        cache.put(settings, source);
+        assertTrue(cache.get(settings, target));
+        new SimulationWriter(new Simulator(settings), target).saveSimulation();
+        assertTrue(target.length() > 3);
+        assertTrue(cache.get(settings, target));
+
+        assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void ensembleReusesCachedRuns() throws Exception {
+        ResultCache cache = new ResultCache(tmpFolder.newFolder(), Long.MAX_VALUE);
+        EnsembleRunner first = EnsembleRunner.newBuilder()
+                .settings(settings)
+                .seeds(1, 2)
+                .outputDirectory(tmpFolder.newFolder())
+                .cache(cache)
+                .build();
+        EnsembleRunner second = EnsembleRunner.newBuilder()
+                .settings(settings)
+                .seeds(1, 2)
+                .outputDirectory(tmpFolder.newFolder())
+                .cache(cache)
+                .build();
+
+        assertTrue(first.run().getParticleSteps() > 0);
+        assertEquals(0, second.run().getParticleSteps());
+        assertArrayEquals(Files.readAllBytes(first.getOutputFile(2).toPath()),
+                Files.readAllBytes(second.getOutputFile(2).toPath()));
+
+        // cache entries survive a rerun into the same directory
+        assertEquals(0, second.run().getParticleSteps());
+        assertArrayEquals(Files.readAllBytes(first.getOutputFile(2).toPath()),
+                Files.readAllBytes(second.getOutputFile(2).toPath()));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.batch;
+
+import eu.mivrenik.particles.io.ExperimentLoader;
+import eu.mivrenik.particles.io.SimulationWriter;
+import eu.mivrenik.particles.model.ExperimentSettings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SweepSchedulerTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private final ExperimentSettings base = ExperimentSettings.newBuilder()
+            .boxSize(100.0f, 100.0f)
+            .barrier(45.0f, 10.0f)
+            .hole(45.0f, 10.0f)
+            .initialSpeed(1.0f)
+            .speedDelta(0.05f, 0.05f, 0.05f)
+            .speedLoss(0.005f)
+            .particleRadius(0.1f)
+            .particleCount(10, 10)
+            .fps(30)
+            .g(9.8f)
+            .duration(1)
+            .seed(1)
+            .build();
+
+    @Test
+    public void runWithinMemoryBudget() throws Exception {
+        List<ExperimentSettings> runs = ParameterSweep.newBuilder(base)
+                .speedLoss(0, 0.01f)
+                .particleCount(5, 5)
+                .particleCount(10, 10)
+                .build();
+        File directory = tmpFolder.newFolder();
+        // only one run fits at a time
+        SweepScheduler scheduler = SweepScheduler.newBuilder()
+                .outputDirectory(directory)
+                .threads(2)
+                .memoryBudget(RunCost.estimate(runs.get(1)).getMemoryBytes() + 1)
+                .build();
+
+        EnsembleReport report = scheduler.run(runs);
+
+        assertEquals(4, report.getRunCount());
+        for (int index = 0; index < runs.size(); index++) {
+            ExperimentLoader loader = new ExperimentLoader(scheduler.getOutputFile(index));
+            assertEquals(runs.get(index), loader.getExperimentSettings());
+            assertEquals(RunCost.estimate(runs.get(index)).getDiskBytes(), scheduler.getOutputFile(index).length());
+            loader.close();
+        }
+
+        List<String> summary = Files.readAllLines(scheduler.getSummaryFile().toPath(), StandardCharsets.UTF_8);
+        assertEquals(5, summary.size());
+    }
+
+    @Test
+    public void costCountsWriterBuffers() {
+        RunCost cost = RunCost.estimate(base);
+        long frameBytes = 8 + base.getParticleCount() * 36;
+
+        assertEquals(SimulationWriter.DEFAULT_BUFFERED_FRAMES * frameBytes, cost.getDirectBytes());
+        assertTrue(cost.getMemoryBytes() > cost.getDirectBytes());
+        // chunks of the compressed format take at least three chunk-sized buffers
+        long chunkBytes = (1 << 21) - frameBytes;
+        assertTrue(RunCost.estimate(base, true).getMemoryBytes() >= cost.getMemoryBytes() + 3 * chunkBytes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void runOverDiskBudget() throws Exception {
+        List<ExperimentSettings> runs = ParameterSweep.newBuilder(base).g(0, 9.8f).build();
+        File directory = tmpFolder.newFolder();
+
+        try {
+            SweepScheduler.newBuilder()
+                    .outputDirectory(directory)
+                    .diskBudget(RunCost.estimate(base).getDiskBytes())
+                    .build()
+                    .run(runs);
+        } finally {
+            assertFalse(new File(directory, "run-0.bin").exists());
+        }
+    }
+}
@@ -23,6 +23,8 @@ package eu.mivrenik.particles.io;
 
 import eu.mivrenik.particles.model.ExperimentSettings;
 import eu.mivrenik.particles.model.ExperimentState;
+import eu.mivrenik.particles.model.Particle;
+import eu.mivrenik.particles.model.ParticleStore;
 import eu.mivrenik.particles.model.Simulator;
 import org.junit.Before;
 import org.junit.Rule;
@@ -30,9 +32,23 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ExperimentIOTest {
     @Rule
@@ -103,5 +119,250 @@ public class ExperimentIOTest {
         assertTrue(state_before.getTime() < state_base.getTime());
     }
 
+    @Test
+    public void testMemoryMappedLoader() throws Exception {
+        ExperimentLoader mapped = new ExperimentLoader(file, true);
+
+        assertTrue(mapped.isMemoryMapped());
+        assertEquals(loader.getStateCount(), mapped.getStateCount());
+        for (int i = 0; i < loader.getStateCount(); i += 7) {
+            assertEquals(loader.getState(i), mapped.getState(i));
+            assertEquals(loader.getState(i).getTime(), mapped.getState(i).getTime());
+        }
+        mapped.close();
+    }
+
+    @Test
+    public void testFrameView() throws Exception {
+        ExperimentLoader mapped = new ExperimentLoader(file, true);
+        FrameView view = loader.getView(0);
+        FrameView mappedView = mapped.getView(0);
+
+        for (int index = 0; index < loader.getStateCount(); index += 11) {
+            ExperimentState state = loader.getState(index);
+
+            assertSame(view, loader.getView(index, view));
+            assertSame(mappedView, mapped.getView(index, mappedView));
+            assertEquals(state, view.toState(settings));
+            assertEquals(state.getTime(), mappedView.getTime());
+            for (int i = 0; i < mappedView.size(); i++) {
+                Particle particle = state.getParticles()[i];
+
+                assertEquals(particle, mappedView.getParticle(i));
+                assertEquals(particle.getPosX(), mappedView.getPosX(i), 0.0);
+                assertEquals(particle.getSpeed(), mappedView.getSpeed(i), 0.0);
+            }
+        }
+        mapped.close();
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        ExperimentState[] expected = new ExperimentState[(int) loader.getStateCount()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = loader.getState(i);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            int stride = 3 + 2 * thread;
+            results.add(pool.submit(() -> {
+                FrameView view = loader.getView(0);
+                for (int i = 0; i < expected.length; i++) {
+                    int index = i * stride % expected.length;
+                    if (!expected[index].equals(loader.getView(index, view).toState(settings))) {
+                        return false;
+                    }
+                }
+                return true;
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testViewStream() throws Exception {
+        double leftBound = settings.getBarrierPosX();
+        long expectedTime = 0;
+        long expectedLeft = 0;
+        for (int i = 0; i < loader.getStateCount(); i++) {
+            ExperimentState state = loader.getState(i);
+
+            expectedTime += state.getTime();
+            expectedLeft += Arrays.stream(state.getParticles()).filter(p -> p.getPosX() < leftBound).count();
+        }
+
+        assertEquals(loader.getStateCount(), loader.spliterator().getExactSizeIfKnown());
+        // the view passed to actions is reused, so the elements are not immutable
+        assertFalse(loader.spliterator().hasCharacteristics(Spliterator.IMMUTABLE));
+        assertEquals(expectedTime, loader.views().mapToLong(FrameView::getTime).sum());
+        for (boolean memoryMapped : new boolean[] {false, true}) {
+            ExperimentLoader source = new ExperimentLoader(file, memoryMapped);
+            long left = source.views().parallel().mapToLong(view -> {
+                long count = 0;
+                for (int i = 0; i < view.size(); i++) {
+                    count += view.getPosX(i) < leftBound ? 1 : 0;
+                }
+                return count;
+            }).sum();
+
+            assertEquals(expectedLeft, left);
+            assertEquals(expectedTime, source.views().parallel().mapToLong(FrameView::getTime).sum());
+            source.close();
+        }
+    }
+
+    @Test
+    public void testFileBeyondIntRange() throws Exception {
+        // more states than an int can count, the file is sparse so it takes no disk space
+        File huge = tmpFolder.newFile("huge.bin");
+        ExperimentSettings single = ExperimentSettings.newBuilder(settings).particleCount(1, 0).build();
+        long stateCount = 3_000_000_000L;
+        long[] indices = {0, Integer.MAX_VALUE + 10L, stateCount - 1};
+
+        try (RandomAccessFile out = new RandomAccessFile(huge, "rw")) {
+            SimulationWriter.writeSettings(out, single);
+            out.setLength(ExperimentLoader.SETTINGS_SIZE + stateCount * 44);
+            for (long index : indices) {
+                out.seek(ExperimentLoader.SETTINGS_SIZE + index * 44);
+                out.writeLong(index);
+                out.writeInt((int) (index % 1000));
+                out.writeDouble(index);
+                out.writeDouble(-index);
+                out.writeDouble(1.0);
+                out.writeDouble(2.0);
+            }
+        }
+
+        for (boolean memoryMapped : new boolean[] {false, true}) {
+            ExperimentLoader hugeLoader = new ExperimentLoader(huge, memoryMapped);
+
+            assertEquals(stateCount, hugeLoader.getStateCount());
+            for (long index : indices) {
+                ExperimentState state = hugeLoader.getState(index);
+                Particle particle = state.getParticles()[0];
+
+                assertEquals(index, state.getTime());
+                assertEquals(index % 1000, particle.getId());
+                assertEquals(index, particle.getPosX(), 0.0);
+                assertEquals(-index, particle.getPosY(), 0.0);
+            }
+            assertEquals(0, hugeLoader.getState(stateCount / 2).getTime());
+            hugeLoader.close();
+        }
+    }
+
+    @Test
+    public void testResumeSimulation() throws Exception {
+        File resumed = tmpFolder.newFile("resumed.bin");
+        Simulator crashing = new Simulator(settings) {
+            private int steps;
+
+            @Override
+            public long nextTimeStep(final ParticleStore from, final ParticleStore to, final long deltaTime) {
+                if (++steps > 3000) {
+                    throw new IllegalStateException("Crash");
+                }
+                return super.nextTimeStep(from, to, deltaTime);
+            }
+        };
+        SimulationWriter writer = new SimulationWriter(crashing, resumed);
+        writer.setCheckpointInterval(1);
+
+        try {
+            writer.saveSimulation();
+        } catch (IllegalStateException e) {
+            assertEquals("Crash", e.getMessage());
+        }
+        assertTrue(writer.getCheckpointFile().exists());
+
+        writer = new SimulationWriter(new Simulator(settings), resumed);
+        writer.resumeSimulation();
+
+        assertFalse(writer.getCheckpointFile().exists());
+        assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(resumed.toPath()));
+    }
+
+    @Test
+    public void testCompressedFile() throws Exception {
+        File compressed = tmpFolder.newFile("compressed.bin");
+        SimulationWriter writer = new SimulationWriter(new Simulator(settings), compressed);
+        writer.setCompressed(true);
+        writer.saveSimulation();
+
+        ExperimentLoader compressedLoader = new ExperimentLoader(compressed);
+
+        assertEquals(2, compressedLoader.getFormatVersion());
+        assertEquals(1, loader.getFormatVersion());
+        assertEquals(settings, compressedLoader.getExperimentSettings());
+        assertEquals(loader.getDataChunkSize(), compressedLoader.getDataChunkSize());
+        assertEquals(loader.getStateCount(), compressedLoader.getStateCount());
+        assertTrue(compressed.length() < file.length() * 3 / 4);
+        for (int i = 0; i < loader.getStateCount(); i++) {
+            assertEquals(loader.getState(i), compressedLoader.getState(i));
+            assertEquals(loader.getState(i).getTime(), compressedLoader.getState(i).getTime());
+        }
+        // random access inflates the chunk of the state only
+        assertEquals(loader.getState(1000), compressedLoader.getState(1000));
+        assertEquals(loader.getState(3), compressedLoader.getState(3));
+        assertEquals(loader.views().parallel().mapToLong(FrameView::getTime).sum(),
+                compressedLoader.views().parallel().mapToLong(FrameView::getTime).sum());
+        compressedLoader.close();
+        try {
+            compressedLoader.getState(0);
+            fail("States of a closed file cannot be read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testResumeCompressedSimulation() throws Exception {
+        File expected = tmpFolder.newFile("expected.bin");
+        SimulationWriter writer = new SimulationWriter(new Simulator(settings), expected);
+        writer.setCompressed(true);
+        writer.saveSimulation();
+
+        // crash after the first chunks were completed, checkpoints are only saved at their ends
+        long crashStep = writer.getStepCount() * 3 / 4;
+        File resumed = tmpFolder.newFile("resumed.bin");
+        Simulator crashing = new Simulator(settings) {
+            private int steps;
+
+            @Override
+            public long nextTimeStep(final ParticleStore from, final ParticleStore to, final long deltaTime) {
+                if (++steps > crashStep) {
+                    throw new IllegalStateException("Crash");
+                }
+                return super.nextTimeStep(from, to, deltaTime);
+            }
+        };
+        writer = new SimulationWriter(crashing, resumed);
+        writer.setCompressed(true);
+        writer.setCheckpointInterval(1);
+
+        try {
+            writer.saveSimulation();
+        } catch (IllegalStateException e) {
+            assertEquals("Crash", e.getMessage());
+        }
+        assertTrue(writer.getCheckpointFile().exists());
+        // the incomplete file has no footer, its complete chunks are found by their lengths
+        ExperimentLoader incomplete = new ExperimentLoader(resumed);
+        assertTrue(incomplete.getStateCount() > 0);
+        incomplete.close();
+
+        writer = new SimulationWriter(new Simulator(settings), resumed);
+        writer.setCompressed(true);
+        writer.resumeSimulation();
+
+        assertFalse(writer.getCheckpointFile().exists());
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(resumed.toPath()));
+    }
+
 
 }
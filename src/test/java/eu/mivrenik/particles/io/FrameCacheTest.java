@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import eu.mivrenik.particles.model.ExperimentSettings;
+import eu.mivrenik.particles.model.Simulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameCacheTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private ExperimentSettings settings;
+    private ExperimentLoader loader;
+
+    @Before
+    public void setUp() throws Exception {
+        File file = tmpFolder.newFile();
+
+        settings = ExperimentSettings.newBuilder()
+                .boxSize(100.0f, 100.0f)
+                .barrier(45.0f, 10.0f)
+                .hole(45.0f, 10.0f)
+                .initialSpeed(1.0f)
+                .speedDelta(0.05f, 0.05f, 0.05f)
+                .speedLoss(0.005f)
+                .particleRadius(0.05f)
+                .particleCount(10, 10)
+                .fps(10)
+                .g(9.8f)
+                .duration(1)
+                .seed(42)
+                .build();
+        new SimulationWriter(new Simulator(settings), file).saveSimulation();
+
+        loader = new ExperimentLoader(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        loader.close();
+    }
+
+    @Test
+    public void viewsMatchTheLoader() throws Exception {
+        try (FrameCache cache = new FrameCache(loader, 8L * loader.getDataChunkSize(), 4)) {
+            FrameView view = cache.getView(0);
+            long[] indices = {0, 1, 2, 3, 2, 1, 300, 100, 599};
+
+            for (long index : indices) {
+                assertEquals(loader.getState(index), cache.getView(index, view).toState(settings));
+            }
+        }
+    }
+
+    @Test
+    public void playbackIsReadAhead() throws Exception {
+        try (FrameCache cache = new FrameCache(loader, 32L * loader.getDataChunkSize(), 8)) {
+            FrameView view = cache.getView(100);
+            cache.getView(101, view);
+
+            awaitCached(cache, 109);
+            long hits = cache.getHits();
+            for (long index = 102; index <= 109; index++) {
+                cache.getView(index, view);
+            }
+            assertEquals(hits + 8, cache.getHits());
+        }
+    }
+
+    @Test
+    public void jumpIsReadAheadOnBothSides() throws Exception {
+        try (FrameCache cache = new FrameCache(loader, 32L * loader.getDataChunkSize(), 8)) {
+            cache.getView(300);
+
+            awaitCached(cache, 296);
+            assertTrue(cache.contains(304));
+            assertFalse(cache.contains(305));
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedStatesAreDropped() throws Exception {
+        try (FrameCache cache = new FrameCache(loader, 4L * loader.getDataChunkSize(), 0)) {
+            FrameView view = cache.getView(0);
+            for (long index = 1; index < 6; index++) {
+                cache.getView(index, view);
+            }
+
+            assertFalse(cache.contains(0));
+            assertFalse(cache.contains(1));
+            assertTrue(cache.contains(2));
+            assertTrue(cache.contains(5));
+            assertEquals(0, cache.getHits());
+            assertEquals(6, cache.getMisses());
+        }
+    }
+
+    private static void awaitCached(final FrameCache cache, final long index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (!cache.contains(index)) {
+            assertTrue("State " + index + " was not read ahead", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
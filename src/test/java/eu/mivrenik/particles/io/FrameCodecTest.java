@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FrameCodecTest {
+    @Test
+    public void decodeRestoresStates() {
+        int frames = 5;
+        int particles = 7;
+        ByteBuffer raw = ByteBuffer.allocate(frames * (8 + 36 * particles));
+        Random random = new Random(1);
+
+        for (int frame = 0; frame < frames; frame++) {
+            raw.putLong(random.nextLong());
+            for (int i = 0; i < particles; i++) {
+                // ids change places, repeat, vanish and exceed the range matched by id
+                raw.putInt(i == 0 ? -1 : (i == 1 ? 1000 : random.nextInt(particles)));
+                raw.putDouble(random.nextDouble());
+                raw.putDouble(-random.nextDouble());
+                raw.putDouble(Double.NaN);
+                raw.putDouble(random.nextGaussian() * 1e300);
+            }
+        }
+
+        byte[] transformed = new byte[raw.capacity()];
+        FrameCodec.encode(raw, frames, particles, transformed);
+        ByteBuffer restored = ByteBuffer.allocate(raw.capacity());
+        FrameCodec.decode(transformed, frames, particles, restored);
+
+        assertArrayEquals(raw.array(), restored.array());
+    }
+}
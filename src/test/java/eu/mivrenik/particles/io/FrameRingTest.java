@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameRingTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void framesAreWrittenInOrder() throws Exception {
+        File file = tmpFolder.newFile();
+
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+             FrameRing ring = new FrameRing(out, 3, Long.BYTES)) {
+            for (long i = 0; i < 1000; i++) {
+                ring.acquire().putLong(i);
+                ring.publish();
+                if (i == 500) {
+                    ring.drain();
+                    assertEquals(501 * Long.BYTES, out.position());
+                }
+            }
+        }
+
+        ByteBuffer written = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        assertEquals(1000 * Long.BYTES, written.remaining());
+        for (long i = 0; i < 1000; i++) {
+            assertEquals(i, written.getLong());
+        }
+    }
+
+    @Test
+    public void writeErrorIsRethrown() throws Exception {
+        FileChannel out = FileChannel.open(tmpFolder.newFile().toPath(), StandardOpenOption.WRITE);
+        out.close();
+
+        FrameRing ring = new FrameRing(out, 1, Long.BYTES);
+        try {
+            // the first frame fails, so the ring never gets a free slot again
+            for (int i = 0; i < 3; i++) {
+                ring.acquire().putLong(i);
+                ring.publish();
+            }
+            fail("Write error was not reported");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof ClosedChannelException);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void writerErrorIsRethrown() throws Exception {
+        FrameRing ring = new FrameRing((frames, count) -> {
+            throw new OutOfMemoryError("No memory for the sink");
+        }, 1, Long.BYTES);
+        try {
+            for (int i = 0; i < 3; i++) {
+                ring.acquire().putLong(i);
+                ring.publish();
+            }
+            ring.close();
+            fail("Writer error was not reported");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof OutOfMemoryError);
+        }
+    }
+}
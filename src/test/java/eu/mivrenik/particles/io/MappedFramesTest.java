@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+
+public class MappedFramesTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void framesDoNotCrossSegments() throws Exception {
+        File file = tmpFolder.newFile();
+        ByteBuffer content = ByteBuffer.allocate(ExperimentLoader.SETTINGS_SIZE + 100 * 2 * Long.BYTES);
+        content.position(ExperimentLoader.SETTINGS_SIZE);
+        for (long frame = 0; frame < 100; frame++) {
+            content.putLong(frame).putLong(-frame);
+        }
+        Files.write(file.toPath(), content.array());
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // 3 frames fit a segment
+            MappedFrames frames = new MappedFrames(channel, ExperimentLoader.SETTINGS_SIZE, 2 * Long.BYTES, 100, 50);
+
+            for (long frame = 0; frame < 100; frame++) {
+                ByteBuffer segment = frames.getSegment(frame);
+                int offset = frames.getOffset(frame);
+
+                assertEquals(frame, segment.getLong(offset));
+                assertEquals(-frame, segment.getLong(offset + Long.BYTES));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void framesLargerThanSegmentAreRejected() throws Exception {
+        File file = tmpFolder.newFile();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            new MappedFrames(channel, 0, 100, 1, 50);
+        }
+    }
+}
@@ -27,8 +27,11 @@ import org.junit.rules.ExpectedException;
 
 import java.util.Arrays;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 public class SimulatorTest {
     @Rule
@@ -87,6 +90,125 @@ public class SimulatorTest {
         assertEquals(0, startState.getParticles().length);
     }
 
+    @Test
+    public void initialDistributionWithoutOverlaps() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(1000, 1000)
+                .initialSpeed(1)
+                .boxSize(120, 120)
+                .speedDelta(1, 1, 1)
+                .barrier(60, 2)
+                .hole(60, 10)
+                .fps(30)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0.01f)
+                .g(9.8f)
+                .particleRadius(1)
+                .build();
+        Particle[] particles = new Simulator(experimentSettings).initialDistribution().getParticles();
+        Particle[] again = new Simulator(experimentSettings).initialDistribution().getParticles();
+
+        assertArrayEquals(particles, again);
+        for (int i = 0; i < particles.length; i++) {
+            for (int j = i + 1; j < particles.length; j++) {
+                boolean sameChamber = particles[i].getPosX() < 60 == particles[j].getPosX() < 60;
+                assertFalse(sameChamber && particles[i].overlaps(particles[j], 1));
+            }
+        }
+    }
+
+    @Test
+    public void initialDistributionOnLattice() throws Exception {
+        for (ParticlePlacement placement : new ParticlePlacement[] {
+                ParticlePlacement.SQUARE_LATTICE, ParticlePlacement.HEXAGONAL_LATTICE}) {
+            // about 80% of the densest packing of each lattice
+            int count = placement == ParticlePlacement.SQUARE_LATTICE ? 600 : 700;
+            ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                    .particleCount(count, count)
+                    .initialSpeed(1)
+                    .boxSize(102, 56)
+                    .speedDelta(1, 1, 1)
+                    .barrier(51, 2)
+                    .hole(28, 10)
+                    .fps(30)
+                    .duration(1)
+                    .seed(241)
+                    .speedLoss(0.01f)
+                    .g(9.8f)
+                    .particleRadius(1)
+                    .particlePlacement(placement)
+                    .build();
+            Particle[] particles = new Simulator(experimentSettings).initialDistribution().getParticles();
+
+            assertArrayEquals(particles, new Simulator(experimentSettings).initialDistribution().getParticles());
+            for (int i = 0; i < particles.length; i++) {
+                double x = particles[i].getPosX();
+                double y = particles[i].getPosY();
+                assertEquals(i < count ? 2 * i : 2 * (i - count) + 1, particles[i].getId());
+                assertTrue(i < count ? x >= 1 && x <= 49 : x >= 53 && x <= 101);
+                assertTrue(y >= 1 && y <= 55);
+
+                for (int j = i + 1; j < particles.length; j++) {
+                    assertTrue(particles[i].getDistanceTo(particles[j]) > 2 - 1E-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void initialDistributionInParallelIsReproducible() throws Exception {
+        for (ParticlePlacement placement : ParticlePlacement.values()) {
+            // several blocks of random streams per chamber
+            ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                    .particleCount(5000, 5000)
+                    .initialSpeed(1)
+                    .boxSize(1000, 400)
+                    .speedDelta(1, 1, 1)
+                    .barrier(500, 2)
+                    .hole(200, 10)
+                    .fps(30)
+                    .duration(1)
+                    .seed(241)
+                    .speedLoss(0.01f)
+                    .g(9.8f)
+                    .particleRadius(1)
+                    .particlePlacement(placement)
+                    .build();
+            Particle[] particles = new Simulator(experimentSettings).initialDistribution().getParticles();
+
+            for (int threads = 2; threads <= 4; threads++) {
+                try (Simulator simulator = Simulator.newBuilder().settings(experimentSettings).parallelism(threads)
+                        .build()) {
+                    assertArrayEquals(particles, simulator.initialDistribution().getParticles());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void initialDistributionOnLatticeOverCapacity() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(10, 701)
+                .initialSpeed(1)
+                .boxSize(102, 56)
+                .speedDelta(1, 1, 1)
+                .barrier(51, 2)
+                .hole(28, 10)
+                .fps(30)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0.01f)
+                .g(9.8f)
+                .particleRadius(1)
+                .particlePlacement(ParticlePlacement.SQUARE_LATTICE)
+                .build();
+        Simulator simulator = new Simulator(experimentSettings);
+        thrownException.expect(IllegalArgumentException.class);
+        thrownException.expectMessage("right chamber");
+        simulator.initialDistribution();
+    }
+
     @Test
     public void initialDistributionException() throws Exception {
         ExperimentSettings.Builder builder = ExperimentSettings.newBuilder();
@@ -178,4 +300,410 @@ public class SimulatorTest {
             assertEquals(true, beforeMoving[i].equals(afterMoving[i]));
         }
     }
+
+    @Test
+    public void nextTimeStepCollidesParticlesInWideBox() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(2, 1)
+                .initialSpeed(1)
+                .boxSize(1000, 10)
+                .speedDelta(0, 0, 0)
+                .barrier(990, 2)
+                .hole(5, 2)
+                .fps(30)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0)
+                .g(0)
+                .particleRadius(1)
+                .build();
+        Particle[] particles = new Particle[] {
+                Particle.newBuilder().id(0).position(100, 5).velocity(1, 0).build(),
+                Particle.newBuilder().id(2).position(101.5, 5).velocity(-1, 0).build(),
+                Particle.newBuilder().id(1).position(500, 5).velocity(0, 0).build()
+        };
+        ExperimentState state = ExperimentState.newBuilder()
+                .particles(particles)
+                .settings(experimentSettings)
+                .time(0)
+                .build();
+
+        Particle[] result = new Simulator(experimentSettings).nextTimeStep(state, 0).getParticles();
+
+        assertEquals(-1, result[0].getVelocityX(), 1E-10);
+        assertEquals(1, result[1].getVelocityX(), 1E-10);
+        assertEquals(2, result[1].getPosX() - result[0].getPosX(), 1E-10);
+        assertEquals(0, result[2].getVelocityX(), 1E-10);
+    }
+
+    @Test
+    public void nextTimeStepInStore() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(100, 100)
+                .initialSpeed(1)
+                .boxSize(50, 50)
+                .speedDelta(1, 1, 1)
+                .barrier(25, 2)
+                .hole(25, 5)
+                .fps(30)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0.01f)
+                .g(9.8f)
+                .particleRadius(1)
+                .build();
+        Simulator simulator = new Simulator(experimentSettings);
+        ExperimentState state = simulator.initialDistribution();
+        ParticleStore from = ParticleStore.of(state);
+        ParticleStore to = new ParticleStore(from.size());
+
+        for (int step = 0; step < 100; step++) {
+            long deltaTime = Simulator.calculateTimeStep(state);
+            assertEquals(deltaTime, Simulator.calculateTimeStep(from, experimentSettings));
+
+            state = simulator.nextTimeStep(state, deltaTime);
+            // the suggested step is tracked by the step itself
+            assertEquals(Simulator.calculateTimeStep(state), simulator.nextTimeStep(from, to, deltaTime));
+
+            ParticleStore swap = from;
+            from = to;
+            to = swap;
+        }
+
+        assertEquals(state.getTime(), from.getTime());
+        assertEquals(state.getTime(), simulator.getLastTime());
+        assertEquals(state, from.toState(experimentSettings));
+    }
+
+    @Test
+    public void nextTimeStepKeepsEveryParticleWhenReordering() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(500, 500)
+                .initialSpeed(10)
+                .boxSize(100, 100)
+                .speedDelta(1, 1, 1)
+                .barrier(50, 2)
+                .hole(50, 10)
+                .fps(30)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0.01f)
+                .g(9.8f)
+                .particleRadius(1)
+                .build();
+        ParticleStore store = simulate(new Simulator(experimentSettings), 200);
+        int[] ids = new int[store.size()];
+
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = store.getId(i);
+        }
+        Arrays.sort(ids);
+
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(i, ids[i]);
+        }
+    }
+
+    @Test
+    public void nextTimeStepInParallelIsReproducible() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(2000, 2000)
+                .initialSpeed(1)
+                .boxSize(200, 200)
+                .speedDelta(1, 1, 1)
+                .barrier(100, 2)
+                .hole(100, 10)
+                .fps(30)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0.01f)
+                .g(9.8f)
+                .particleRadius(1)
+                .build();
+        ParticleStore first = simulate(Simulator.newBuilder().settings(experimentSettings).parallelism(4).build(), 50);
+        ParticleStore second = simulate(Simulator.newBuilder().settings(experimentSettings).parallelism(4).build(), 50);
+
+        assertEquals(first.toState(experimentSettings), second.toState(experimentSettings));
+    }
+
+    @Test
+    public void eventDrivenCollidesParticlesExactly() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(2, 0)
+                .initialSpeed(1)
+                .boxSize(1000, 10)
+                .speedDelta(0, 0, 0)
+                .barrier(990, 2)
+                .hole(5, 2)
+                .fps(1)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0)
+                .g(0)
+                .particleRadius(1)
+                .build();
+        ParticleStore from = new ParticleStore(2);
+        from.set(0, Particle.newBuilder().id(0).position(100, 5).velocity(1, 0).build());
+        from.set(1, Particle.newBuilder().id(2).position(106, 5).velocity(-1, 0).build());
+        ParticleStore to = new ParticleStore(2);
+
+        Simulator simulator = Simulator.newBuilder().settings(experimentSettings).eventDriven(true).build();
+        simulator.nextTimeStep(from, to, simulator.getTimeStep(from));
+
+        // particles touch after 2 seconds, one second later the collision is undone
+        assertEquals(1000000, to.getTime());
+        assertEquals(1000000, simulator.getLastTime());
+        assertEquals(101, to.getPosX(0), 1E-10);
+        assertEquals(105, to.getPosX(1), 1E-10);
+
+        simulator.nextTimeStep(to, from, simulator.getTimeStep(to));
+        simulator.nextTimeStep(from, to, simulator.getTimeStep(from));
+
+        assertEquals(-1, to.getVelocityX(0), 1E-10);
+        assertEquals(1, to.getVelocityX(1), 1E-10);
+        assertEquals(101, to.getPosX(0), 1E-10);
+        assertEquals(105, to.getPosX(1), 1E-10);
+    }
+
+    @Test
+    public void eventDrivenKeepsParticlesInBox() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(100, 100)
+                .initialSpeed(10)
+                .boxSize(50, 50)
+                .speedDelta(1, 1, 1)
+                .barrier(25, 2)
+                .hole(25, 5)
+                .fps(30)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0.01f)
+                .g(9.8f)
+                .particleRadius(1)
+                .build();
+        ParticleStore first = simulate(
+                Simulator.newBuilder().settings(experimentSettings).eventDriven(true).build(), 60);
+        ParticleStore second = simulate(
+                Simulator.newBuilder().settings(experimentSettings).eventDriven(true).build(), 60);
+
+        assertEquals(60 * 33333, first.getTime());
+        assertEquals(first.toState(experimentSettings), second.toState(experimentSettings));
+        for (int i = 0; i < first.size(); i++) {
+            assertTrue(first.getPosX(i) >= 1 - 1E-9 && first.getPosX(i) <= 49 + 1E-9);
+            assertTrue(first.getPosY(i) >= 1 - 1E-9 && first.getPosY(i) <= 49 + 1E-9);
+            assertFalse(Double.isNaN(first.getVelocityX(i)) || Double.isNaN(first.getVelocityY(i)));
+        }
+    }
+
+    @Test
+    public void eventDrivenKeepsParticlesInBoxUnderGravity() throws Exception {
+        // particles bounce off the floor again and again, the bounce leaves them exactly on it
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(200, 200)
+                .initialSpeed(1)
+                .boxSize(10, 10)
+                .speedDelta(0.05f, 0.05f, 0.05f)
+                .barrier(5, 0.2f)
+                .hole(5, 1)
+                .fps(30)
+                .duration(1)
+                .seed(5553535)
+                .speedLoss(0.005f)
+                .g(9.8f)
+                .particleRadius(0.1f)
+                .build();
+        Simulator simulator = Simulator.newBuilder().settings(experimentSettings).eventDriven(true).build();
+        ParticleStore from = ParticleStore.of(simulator.initialDistribution());
+        ParticleStore to = new ParticleStore(from.size());
+
+        while (from.getTime() < 30_000_000) {
+            simulator.nextTimeStep(from, to, simulator.getTimeStep(from));
+            ParticleStore swap = from;
+            from = to;
+            to = swap;
+
+            for (int i = 0; i < from.size(); i++) {
+                String particle = "Particle " + from.getId(i) + " at " + from.getTime() + " us";
+                assertTrue(particle, from.getPosX(i) >= 0.1 - 1E-9 && from.getPosX(i) <= 9.9 + 1E-9);
+                assertTrue(particle, from.getPosY(i) >= 0.1 - 1E-9 && from.getPosY(i) <= 9.9 + 1E-9);
+            }
+        }
+    }
+
+    @Test
+    public void continuousCollisionsDoNotTunnel() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(2, 0)
+                .initialSpeed(100)
+                .boxSize(1000, 10)
+                .speedDelta(0, 0, 0)
+                .barrier(990, 2)
+                .hole(5, 2)
+                .fps(10)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0)
+                .g(0)
+                .particleRadius(1)
+                .build();
+        ParticleStore from = new ParticleStore(2);
+        from.set(0, Particle.newBuilder().id(0).position(100, 5).velocity(100, 0).build());
+        from.set(1, Particle.newBuilder().id(2).position(110, 5).velocity(-100, 0).build());
+        ParticleStore to = new ParticleStore(2);
+
+        // without sweeping, particles would pass through each other within the step
+        Simulator.newBuilder().settings(experimentSettings).continuousCollisions(true).build()
+                .nextTimeStep(from, to, Simulator.calculateFrameTimeStep(experimentSettings, 1));
+
+        assertEquals(100000, to.getTime());
+        assertEquals(98, to.getPosX(0), 1E-9);
+        assertEquals(112, to.getPosX(1), 1E-9);
+        assertEquals(-100, to.getVelocityX(0), 1E-9);
+        assertEquals(100, to.getVelocityX(1), 1E-9);
+    }
+
+    @Test
+    public void continuousCollisionsKeepParticlesInChambers() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(100, 100)
+                .initialSpeed(500)
+                .boxSize(100, 50)
+                .speedDelta(0, 0, 0)
+                .barrier(50, 2)
+                .hole(25, 0)
+                .fps(30)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0.01f)
+                .g(9.8f)
+                .particleRadius(1)
+                .build();
+        Simulator simulator = Simulator.newBuilder().settings(experimentSettings).continuousCollisions(true).build();
+        ParticleStore from = ParticleStore.of(simulator.initialDistribution());
+        ParticleStore to = new ParticleStore(from.size());
+
+        // fastest particle moves 16.7 radii per frame
+        assertEquals(Simulator.calculateFrameTimeStep(experimentSettings, 3), simulator.getTimeStep(from));
+
+        while (from.getTime() < 2000000) {
+            simulator.nextTimeStep(from, to, simulator.getTimeStep(from));
+
+            ParticleStore swap = from;
+            from = to;
+            to = swap;
+        }
+
+        for (int i = 0; i < from.size(); i++) {
+            double x = from.getPosX(i);
+            double y = from.getPosY(i);
+            assertTrue(from.getId(i) % 2 == 0 ? x >= 1 - 1E-9 && x <= 48 + 1E-9 : x >= 52 - 1E-9 && x <= 99 + 1E-9);
+            assertTrue(y >= 1 - 1E-9 && y <= 49 + 1E-9);
+        }
+    }
+
+    @Test
+    public void nextTimeStepWithNeighbourLists() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(2, 0)
+                .initialSpeed(1)
+                .boxSize(1000, 10)
+                .speedDelta(0, 0, 0)
+                .barrier(990, 2)
+                .hole(5, 2)
+                .fps(30)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0)
+                .g(0)
+                .particleRadius(1)
+                .build();
+        ParticleStore from = new ParticleStore(2);
+        from.set(0, Particle.newBuilder().id(0).position(100, 5).velocity(1, 0).build());
+        from.set(1, Particle.newBuilder().id(2).position(102.9, 5).velocity(-1, 0).build());
+        ParticleStore to = new ParticleStore(2);
+        Simulator simulator = Simulator.newBuilder().settings(experimentSettings).neighbourSkin(1).build();
+
+        // lists are built in the first step and reused until particles meet
+        for (int step = 0; step < 6; step++) {
+            simulator.nextTimeStep(from, to, 100000);
+
+            ParticleStore swap = from;
+            from = to;
+            to = swap;
+        }
+
+        assertEquals(-1, from.getVelocityX(from.getId(0) == 0 ? 0 : 1), 1E-10);
+        assertEquals(1, from.getVelocityX(from.getId(0) == 0 ? 1 : 0), 1E-10);
+    }
+
+    @Test
+    public void nextTimeStepWithNeighbourListsInParallelIsReproducible() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(2000, 2000)
+                .initialSpeed(1)
+                .boxSize(200, 200)
+                .speedDelta(1, 1, 1)
+                .barrier(100, 2)
+                .hole(100, 10)
+                .fps(30)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0.01f)
+                .g(9.8f)
+                .particleRadius(1)
+                .build();
+        ParticleStore first = simulate(Simulator.newBuilder().settings(experimentSettings).parallelism(4)
+                .neighbourSkin(1).build(), 50);
+        ParticleStore second = simulate(Simulator.newBuilder().settings(experimentSettings).parallelism(4)
+                .neighbourSkin(1).build(), 50);
+
+        assertEquals(first.toState(experimentSettings), second.toState(experimentSettings));
+        for (int i = 0; i < first.size(); i++) {
+            assertTrue(first.getPosX(i) >= 1 && first.getPosX(i) <= 199);
+            assertTrue(first.getPosY(i) >= 1 && first.getPosY(i) <= 199);
+        }
+    }
+
+    @Test
+    public void vectorKernelsMatchScalarKernels() throws Exception {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(500, 500)
+                .initialSpeed(1)
+                .boxSize(100, 100)
+                .speedDelta(1, 1, 1)
+                .barrier(50, 2)
+                .hole(50, 10)
+                .fps(30)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0.01f)
+                .g(9.8f)
+                .particleRadius(1)
+                .build();
+        // falls back to the scalar kernel unless the vector module is available
+        ParticleStore vector = simulate(Simulator.newBuilder().settings(experimentSettings)
+                .vectorKernels(true).build(), 300);
+        ParticleStore scalar = simulate(Simulator.newBuilder().settings(experimentSettings).build(), 300);
+
+        assertEquals(scalar.toState(experimentSettings), vector.toState(experimentSettings));
+    }
+
+    private static ParticleStore simulate(final Simulator simulator, final int steps) throws Exception {
+        try {
+            ParticleStore from = ParticleStore.of(simulator.initialDistribution());
+            ParticleStore to = new ParticleStore(from.size());
+
+            for (int step = 0; step < steps; step++) {
+                simulator.nextTimeStep(from, to, simulator.getTimeStep(from));
+
+                ParticleStore swap = from;
+                from = to;
+                to = swap;
+            }
+
+            return from;
+        } finally {
+            simulator.close();
+        }
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.particles.model;
+
+import java.util.Random;
+
+/**
+ * Compares the scalar {@link StepKernel} with the one returned for the
+ * vector API, moving particles and colliding them with walls.
+ *
+ * Run with {@code --add-modules jdk.incubator.vector} and the classes of the
+ * {@code vector} profile on the class path, otherwise both columns measure
+ * the scalar kernel.
+ */
+public final class StepKernelBenchmark {
+    private static final int[] PARTICLE_COUNTS = {1000, 10000, 100000, 1000000};
+    private static final long PASSES = 50000000; // particle updates per measurement
+
+    private StepKernelBenchmark() {
+    }
+
+    public static void main(final String[] args) {
+        ExperimentSettings experimentSettings = ExperimentSettings.newBuilder()
+                .particleCount(500, 500)
+                .initialSpeed(1)
+                .boxSize(1000, 1000)
+                .speedDelta(1, 1, 1)
+                .barrier(500, 2)
+                .hole(500, 100)
+                .fps(30)
+                .duration(1)
+                .seed(241)
+                .speedLoss(0.01f)
+                .g(9.8f)
+                .particleRadius(1)
+                .build();
+        StepKernel scalar = StepKernel.create(experimentSettings, false);
+        StepKernel vector = StepKernel.create(experimentSettings, true);
+
+        System.out.println("Vector kernel available: " + vector.isVectorized());
+        System.out.println("particles   scalar ns/particle   vector ns/particle   speed-up");
+        for (int count : PARTICLE_COUNTS) {
+            double scalarTime = measure(scalar, count);
+            double vectorTime = measure(vector, count);
+
+            System.out.println(String.format("%9d   %18.3f   %18.3f   %7.2fx", count, scalarTime, vectorTime,
+                    scalarTime / vectorTime));
+        }
+    }
+
+    /**
+     * @return Nanoseconds per particle for a move and a wall collision pass.
+     */
+    private static double measure(final StepKernel kernel, final int count) {
+        ParticleStore from = randomStore(count);
+        ParticleStore to = new ParticleStore(count);
+        long passes = Math.max(PASSES / count, 1);
+
+        // warm up, then measure
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+
+            for (long pass = 0; pass < passes; pass++) {
+                kernel.move(from, to, null, 0, count, 0.001);
+                kernel.collideWithWalls(to, 0, count);
+
+                ParticleStore swap = from;
+                from = to;
+                to = swap;
+            }
+            if (round == 1) {
+                return (System.nanoTime() - start) / (double) (passes * count);
+            }
+        }
+
+        return Double.NaN;
+    }
+
+    private static ParticleStore randomStore(final int count) {
+        Random random = new Random(241);
+        ParticleStore store = new ParticleStore(count);
+
+        for (int i = 0; i < count; i++) {
+            store.set(i, Particle.newBuilder()
+                    .id(i)
+                    .position(random.nextDouble() * 1000, random.nextDouble() * 1000)
+                    .velocity(random.nextDouble() * 20 - 10, random.nextDouble() * 20 - 10)
+                    .build());
+        }
+
+        return store;
+    }
+}